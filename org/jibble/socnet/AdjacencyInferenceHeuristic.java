@@ -16,8 +16,12 @@ $Id: AdjacencyInferenceHeuristic.java,v 1.2 2004/05/10 13:04:16 pjm2 Exp $
 
 package org.jibble.socnet;
 
+import java.io.*;
+
 public class AdjacencyInferenceHeuristic extends InferenceHeuristic implements java.io.Serializable {
     
+    private static final long serialVersionUID = 787972399202854687L;
+    
     public AdjacencyInferenceHeuristic(Graph g, Configuration config) {
         super(g, config);
     }
@@ -36,6 +40,17 @@ public class AdjacencyInferenceHeuristic extends InferenceHeuristic implements j
         _lastNick = nick;
     }
     
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(_lastNick != null);
+        if (_lastNick != null) {
+            out.writeUTF(_lastNick);
+        }
+    }
+    
+    public void readState(DataInput in) throws IOException {
+        _lastNick = in.readBoolean() ? in.readUTF() : null;
+    }
+    
     private String _lastNick = null;
     
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.awt.image.*;
+import java.util.Iterator;
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.stream.*;
+
+/**
+ * Writes a sequence of frames to a looping animated GIF, one frame at a
+ * time, so the whole animation never needs to be held in memory.
+ */
+public class AnimatedGifWriter {
+
+    public AnimatedGifWriter(OutputStream out, int delayMillis) throws IOException {
+        Iterator writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF ImageWriter is available.");
+        }
+        _writer = (ImageWriter) writers.next();
+        _output = ImageIO.createImageOutputStream(out);
+        _writer.setOutput(_output);
+        _writer.prepareWriteSequence(null);
+        _delay = delayMillis;
+    }
+
+    // Append a complete frame to the animation.
+    public void writeFrame(BufferedImage image) throws IOException {
+        writeFrame(image, 0, 0);
+    }
+
+    // Append a frame that is drawn at (x, y) on top of the previous frame.
+    public void writeFrame(BufferedImage image, int x, int y) throws IOException {
+        image = toRGB(image);
+        ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+        IIOMetadata metadata = _writer.getDefaultImageMetadata(type, null);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+        IIOMetadataNode descriptor = getChild(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", String.valueOf(x));
+        descriptor.setAttribute("imageTopPosition", String.valueOf(y));
+
+        IIOMetadataNode control = getChild(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "doNotDispose");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", String.valueOf(_delay / 10));
+        control.setAttribute("transparentColorIndex", "0");
+
+        if (_frames == 0) {
+            // Make the animation loop forever.
+            IIOMetadataNode extensions = getChild(root, "ApplicationExtensions");
+            IIOMetadataNode extension = new IIOMetadataNode("ApplicationExtension");
+            extension.setAttribute("applicationID", "NETSCAPE");
+            extension.setAttribute("authenticationCode", "2.0");
+            extension.setUserObject(new byte[] {1, 0, 0});
+            extensions.appendChild(extension);
+        }
+
+        metadata.setFromTree(format, root);
+        _writer.writeToSequence(new IIOImage(image, null, metadata), null);
+        _frames++;
+    }
+
+    // Push any frames written so far through to the underlying stream.
+    public void flush() throws IOException {
+        _output.flush();
+    }
+
+    public int getFrameCount() {
+        return _frames;
+    }
+
+    public void close() throws IOException {
+        _writer.endWriteSequence();
+        _output.close();
+        _writer.dispose();
+    }
+
+    // The GIF encoder has to reduce the image to a palette, and does a
+    // better job of this when there is no alpha channel.
+    private static BufferedImage toRGB(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        rgb.getGraphics().drawImage(image, 0, 0, null);
+        return rgb;
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equalsIgnoreCase(name)) {
+                return (IIOMetadataNode) root.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    private ImageWriter _writer;
+    private ImageOutputStream _output;
+    private int _delay;
+    private int _frames = 0;
+
+}
@@ -0,0 +1,165 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.text.SimpleDateFormat;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+
+/**
+ * An AnimationStream appends each frame of a channel to an animation file
+ * as soon as it is drawn, so timelapses do not have to be built later from
+ * the archived frames. A new file is started when the current one gets too
+ * old or too large.
+ * <p>
+ * Supported formats are "gif" and "apng", which only store the region of
+ * each frame that changed, and "mjpeg", which is a simple concatenation of
+ * complete JPEG images.
+ */
+public class AnimationStream {
+
+    public AnimationStream(File dir, String stem, String format, int delayMillis, long rotateMillis, long rotateBytes) throws IOException {
+        if (!format.equals("gif") && !format.equals("apng") && !format.equals("mjpeg")) {
+            throw new IOException("Unknown animation format: " + format);
+        }
+        _dir = dir;
+        _stem = stem;
+        _format = format;
+        _delay = delayMillis;
+        _rotateMillis = rotateMillis;
+        _rotateBytes = rotateBytes;
+    }
+
+    public synchronized void writeFrame(BufferedImage image) throws IOException {
+        if (_file != null && shouldRotate()) {
+            close();
+        }
+        if (_file == null) {
+            open();
+        }
+
+        if (_format.equals("mjpeg")) {
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            rgb.getGraphics().drawImage(image, 0, 0, null);
+            ImageIO.write(rgb, "jpeg", _out);
+            _out.flush();
+            return;
+        }
+
+        // Work out which part of the frame has changed.
+        int[] pixels = FrameDelta.getPixels(image);
+        Rectangle changed = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        if (_previousPixels != null && _previousPixels.length == pixels.length) {
+            ArrayList rectangles = FrameDelta.getDirtyRectangles(_previousPixels, pixels, image.getWidth(), image.getHeight());
+            if (rectangles.isEmpty()) {
+                // Nothing changed, but a frame is still needed for the timing.
+                changed = new Rectangle(0, 0, 1, 1);
+            }
+            else {
+                changed = (Rectangle) rectangles.get(0);
+                for (int i = 1; i < rectangles.size(); i++) {
+                    changed = changed.union((Rectangle) rectangles.get(i));
+                }
+            }
+        }
+        _previousPixels = pixels;
+
+        BufferedImage region = image.getSubimage(changed.x, changed.y, changed.width, changed.height);
+        if (_format.equals("gif")) {
+            _gif.writeFrame(region, changed.x, changed.y);
+            _gif.flush();
+            _out.flush();
+        }
+        else {
+            BufferedImage copy = new BufferedImage(changed.width, changed.height, BufferedImage.TYPE_INT_ARGB);
+            copy.getGraphics().drawImage(region, 0, 0, null);
+            _apng.writeFrame(copy, changed.x, changed.y);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (_file == null) {
+            return;
+        }
+        if (_gif != null) {
+            _gif.close();
+        }
+        if (_apng != null) {
+            _apng.close();
+        }
+        if (_out != null) {
+            _out.close();
+        }
+        _gif = null;
+        _apng = null;
+        _out = null;
+        _file = null;
+        _previousPixels = null;
+    }
+
+    public synchronized File getFile() {
+        return _file;
+    }
+
+    private boolean shouldRotate() throws IOException {
+        if (_rotateMillis > 0 && System.currentTimeMillis() - _started >= _rotateMillis) {
+            return true;
+        }
+        long length = (_apng != null) ? _apng.length() : _file.length();
+        return _rotateBytes > 0 && length >= _rotateBytes;
+    }
+
+    private void open() throws IOException {
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        String extension = _format.equals("apng") ? "png" : _format;
+        String name = _stem + "-" + df.format(new Date());
+        _file = new File(_dir, name + "." + extension);
+        // Files started within the same second are numbered, so none of
+        // them is overwritten.
+        for (int i = 1; _file.exists(); i++) {
+            _file = new File(_dir, name + "-" + i + "." + extension);
+        }
+        _started = System.currentTimeMillis();
+        if (_format.equals("apng")) {
+            _apng = new ApngWriter(_file, _delay);
+        }
+        else {
+            _out = new BufferedOutputStream(new FileOutputStream(_file));
+            if (_format.equals("gif")) {
+                _gif = new AnimatedGifWriter(_out, _delay);
+            }
+        }
+    }
+
+    private File _dir;
+    private String _stem;
+    private String _format;
+    private int _delay;
+    private long _rotateMillis;
+    private long _rotateBytes;
+
+    private File _file = null;
+    private long _started;
+    private OutputStream _out = null;
+    private AnimatedGifWriter _gif = null;
+    private ApngWriter _apng = null;
+    private int[] _previousPixels = null;
+
+}
@@ -0,0 +1,172 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes an animated PNG one frame at a time. The compressed image data
+ * for each frame is produced by the normal PNG encoder and then wrapped in
+ * the APNG frame chunks. The frame count and end chunk are rewritten after
+ * every frame, so the file is always a complete animation.
+ */
+public class ApngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    public ApngWriter(File file, int delayMillis) throws IOException {
+        _file = new RandomAccessFile(file, "rw");
+        _file.setLength(0);
+        _delay = delayMillis;
+    }
+
+    // Append a frame. Every frame after the first may be a smaller image
+    // that replaces the region at (x, y) of the previous frame. The chunks
+    // are put together in memory and written to the file in one go.
+    public void writeFrame(BufferedImage image, int x, int y) throws IOException {
+        byte[][] chunks = encode(image);
+        byte[] header = chunks[0];
+        byte[] data = chunks[1];
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length + 128);
+        DataOutputStream out = new DataOutputStream(buffer);
+        long start;
+        if (_frames == 0) {
+            start = 0;
+            out.write(SIGNATURE);
+            writeChunk(out, "IHDR", header);
+            // Placeholder animation control chunk, updated after each frame.
+            _actlPosition = out.size();
+            writeChunk(out, "acTL", new byte[8]);
+        }
+        else {
+            // Overwrite the IEND chunk from the previous frame.
+            start = _file.length() - 12;
+        }
+
+        ByteArrayOutputStream control = new ByteArrayOutputStream();
+        DataOutputStream controlOut = new DataOutputStream(control);
+        controlOut.writeInt(_sequence++);
+        controlOut.writeInt(image.getWidth());
+        controlOut.writeInt(image.getHeight());
+        controlOut.writeInt(x);
+        controlOut.writeInt(y);
+        controlOut.writeShort(_delay);
+        controlOut.writeShort(1000);
+        controlOut.writeByte(0);  // APNG_DISPOSE_OP_NONE
+        controlOut.writeByte(0);  // APNG_BLEND_OP_SOURCE
+        writeChunk(out, "fcTL", control.toByteArray());
+
+        if (_frames == 0) {
+            writeChunk(out, "IDAT", data);
+        }
+        else {
+            byte[] frameData = new byte[data.length + 4];
+            frameData[0] = (byte) (_sequence >>> 24);
+            frameData[1] = (byte) (_sequence >>> 16);
+            frameData[2] = (byte) (_sequence >>> 8);
+            frameData[3] = (byte) _sequence;
+            _sequence++;
+            System.arraycopy(data, 0, frameData, 4, data.length);
+            writeChunk(out, "fdAT", frameData);
+        }
+        _frames++;
+        
+        writeChunk(out, "IEND", new byte[0]);
+        _file.seek(start);
+        _file.write(buffer.toByteArray());
+        long end = _file.getFilePointer();
+
+        byte[] actl = new byte[8];
+        actl[0] = (byte) (_frames >>> 24);
+        actl[1] = (byte) (_frames >>> 16);
+        actl[2] = (byte) (_frames >>> 8);
+        actl[3] = (byte) _frames;
+        // The remaining four bytes are zero, so the animation loops forever.
+        buffer.reset();
+        writeChunk(out, "acTL", actl);
+        _file.seek(_actlPosition);
+        _file.write(buffer.toByteArray());
+        _file.seek(end);
+    }
+
+    public int getFrameCount() {
+        return _frames;
+    }
+
+    public long length() throws IOException {
+        return _file.length();
+    }
+
+    public void close() throws IOException {
+        _file.close();
+    }
+
+    // Returns the IHDR contents and the concatenated IDAT contents.
+    private static byte[][] encode(BufferedImage image) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            // All frames must share the colour type of the first.
+            BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            argb.getGraphics().drawImage(image, 0, 0, null);
+            image = argb;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png.toByteArray()));
+        in.skipBytes(SIGNATURE.length);
+        byte[] header = null;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (in.available() > 0) {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            byte[] contents = new byte[length];
+            in.readFully(contents);
+            in.readInt();
+            String name = new String(type, "US-ASCII");
+            if (name.equals("IHDR")) {
+                header = contents;
+            }
+            else if (name.equals("IDAT")) {
+                data.write(contents);
+            }
+        }
+        return new byte[][] {header, data.toByteArray()};
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] contents) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(contents);
+        out.writeInt(contents.length);
+        out.write(name);
+        out.write(contents);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private RandomAccessFile _file;
+    private int _delay;
+    private int _frames = 0;
+    private int _sequence = 0;
+    private long _actlPosition;
+
+}
@@ -17,9 +17,12 @@ $Id: BinarySequenceInferenceHeuristic.java,v 1.3 2004/05/10 23:34:21 pjm2 Exp $
 package org.jibble.socnet;
 
 import java.util.*;
+import java.io.*;
 
 public class BinarySequenceInferenceHeuristic extends InferenceHeuristic implements java.io.Serializable {
     
+    private static final long serialVersionUID = 8940793442448587072L;
+    
     public static final int MIN_SEQ_SIZE = 5;
     
     public BinarySequenceInferenceHeuristic(Graph g, Configuration config) {
@@ -56,6 +59,22 @@ public class BinarySequenceInferenceHeuristic extends InferenceHeuristic impleme
         
     }
     
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(nickHistory.size());
+        Iterator nickIt = nickHistory.iterator();
+        while (nickIt.hasNext()) {
+            out.writeUTF((String) nickIt.next());
+        }
+    }
+    
+    public void readState(DataInput in) throws IOException {
+        nickHistory.clear();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            nickHistory.add(in.readUTF());
+        }
+    }
+    
     private LinkedList nickHistory = new LinkedList();
     
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+/**
+ * The region of the layout that is drawn, along with the maximum edge
+ * weight used to scale the edges. Each output size has its own Bounds, as
+ * the region is stretched to match the aspect ratio of the output.
+ */
+public class Bounds {
+
+    public Bounds(double minX, double maxX, double minY, double maxY, double maxWeight) {
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.maxWeight = maxWeight;
+    }
+
+    // Returns a copy of these Bounds, jibbled to maintain the aspect ratio
+    // of an output of the given size.
+    public Bounds fitTo(int width, int height) {
+        double minX = this.minX;
+        double maxX = this.maxX;
+        double minY = this.minY;
+        double maxY = this.maxY;
+
+        double xyRatio = ((maxX - minX) / (maxY - minY)) / ((double) width / height);
+        if (xyRatio > 1) {
+            // diagram is wider than it is high.
+            double dy = maxY - minY;
+            dy = dy * xyRatio - dy;
+            minY = minY - dy / 2;
+            maxY = maxY + dy / 2;
+        }
+        else if (xyRatio < 1) {
+            // Diagram is higher than it is wide.
+            double dx = maxX - minX;
+            dx = dx / xyRatio - dx;
+            minX = minX - dx / 2;
+            maxX = maxX + dx / 2;
+        }
+        return new Bounds(minX, maxX, minY, maxY, maxWeight);
+    }
+
+    public final double minX;
+    public final double maxX;
+    public final double minY;
+    public final double maxY;
+    public final double maxWeight;
+
+}
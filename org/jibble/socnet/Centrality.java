@@ -0,0 +1,361 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * Keeps track of how central each nick is in a Graph, as the Graph
+ * changes, so that the most central nicks can be found at any time without
+ * going over the whole Graph again.
+ * <p>
+ * The weighted degree of a nick is the total weight of its Edges. It is
+ * kept exactly. Temporal decay is counted once for the whole Graph rather
+ * than for every Edge.
+ * <p>
+ * PageRank is kept approximately by pushing the change made by each Edge
+ * out to the nearby nicks, until what is left to push at any nick is below
+ * TOLERANCE. Decay changes every Edge a little, so the PageRank only sees
+ * it when an Edge changes, or every time the total decay reaches
+ * RESYNC_DECAY, when the whole Graph is brought up to date.
+ */
+public class Centrality extends GraphAdapter {
+
+    public static final int DEGREE = 0;
+    public static final int PAGERANK = 1;
+
+    // The chance of following an Edge rather than jumping to any nick.
+    public static final double DAMPING = 0.85;
+
+    // PageRank is pushed on from a nick when this much has built up.
+    public static final double TOLERANCE = 1e-4;
+
+    public static final double RESYNC_DECAY = 1.0;
+
+    public Centrality(Graph graph) {
+        Iterator nodeIt = graph.getNodes().iterator();
+        while (nodeIt.hasNext()) {
+            getScore((Node) nodeIt.next());
+        }
+        Iterator edgeIt = graph.getEdges().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            addEdge(edge, edge.getWeight());
+        }
+        push();
+    }
+
+    // Returns the weighted degree of a nick, or 0 if it is not known.
+    public synchronized double getDegree(String nick) {
+        Score score = (Score) _scores.get(nick.toLowerCase());
+        return score == null ? 0 : score.getDegree();
+    }
+
+    // Returns the PageRank of a nick, where the PageRanks of all nicks add
+    // up to 1.
+    public synchronized double getRank(String nick) {
+        Score score = (Score) _scores.get(nick.toLowerCase());
+        return score == null || _rankTotal <= 0 ? 0 : score.rank / _rankTotal;
+    }
+
+    // Returns the k most central Nodes, most central first. Only Nodes
+    // with Edges are included.
+    public synchronized Node[] getTop(int k, final int measure) {
+        // Keep the best k seen so far, with the least central at the head.
+        PriorityQueue best = new PriorityQueue(k + 1, new Comparator() {
+            public int compare(Object a, Object b) {
+                double diff = value((Score) a, measure) - value((Score) b, measure);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        Iterator scoreIt = _scores.values().iterator();
+        while (scoreIt.hasNext()) {
+            Score score = (Score) scoreIt.next();
+            if (score.edges.isEmpty()) {
+                continue;
+            }
+            if (best.size() < k) {
+                best.add(score);
+            }
+            else if (k > 0 && value(score, measure) > value((Score) best.peek(), measure)) {
+                best.poll();
+                best.add(score);
+            }
+        }
+        Node[] top = new Node[best.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = ((Score) best.poll()).node;
+        }
+        return top;
+    }
+
+    private double value(Score score, int measure) {
+        return measure == DEGREE ? score.getDegree() : score.rank;
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        getScore(node);
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        Score score = (Score) _scores.remove(node.getLowerCaseNick());
+        if (score != null) {
+            _rankTotal -= score.rank;
+        }
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        Score score = (Score) _scores.get(oldNick.toLowerCase());
+        if (score != null && oldNick.equalsIgnoreCase(node.toString())) {
+            // Only the case has changed.
+            score.node = node;
+            return;
+        }
+        // Any Node that already had the new nick has lost its Edges.
+        Score replaced = (Score) _scores.remove(node.getLowerCaseNick());
+        if (replaced != null) {
+            _rankTotal -= replaced.rank;
+        }
+        score = (Score) _scores.remove(oldNick.toLowerCase());
+        if (score == null) {
+            getScore(node);
+            return;
+        }
+        score.node = node;
+        _scores.put(node.getLowerCaseNick(), score);
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        addEdge(edge, increment);
+        push();
+    }
+
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        Score source = (Score) _scores.get(edge.getSource().getLowerCaseNick());
+        Score target = (Score) _scores.get(edge.getTarget().getLowerCaseNick());
+        if (source == null || target == null) {
+            return;
+        }
+        Tie tie = (Tie) source.edges.remove(target);
+        target.edges.remove(source);
+        if (tie == null) {
+            return;
+        }
+        source.base -= tie.base;
+        target.base -= tie.base;
+        reweigh(source, target, tie, 0);
+        reweigh(target, source, tie, 0);
+        push();
+    }
+
+    public synchronized void graphDecayed(Graph graph, double amount) {
+        _decayed += amount;
+        _unsynced += amount;
+    }
+
+    // Bring the PageRank up to date with the decayed weights once enough
+    // decay has built up.
+    public synchronized void frameCompleted(Graph graph) {
+        if (_unsynced >= RESYNC_DECAY) {
+            resync();
+        }
+    }
+
+    private Score getScore(Node node) {
+        Score score = (Score) _scores.get(node.getLowerCaseNick());
+        if (score == null) {
+            score = new Score(node);
+            _scores.put(score.nick(), score);
+            // Every nick starts with the chance of being jumped to.
+            score.residual = 1 - DAMPING;
+            queue(score);
+        }
+        return score;
+    }
+
+    private void addEdge(Edge edge, double increment) {
+        Score source = getScore(edge.getSource());
+        Score target = getScore(edge.getTarget());
+        Tie tie = (Tie) source.edges.get(target);
+        if (tie == null) {
+            // The decay so far is added, as it is taken off every Edge.
+            tie = new Tie();
+            tie.base = edge.getWeight() + _decayed;
+            source.edges.put(target, tie);
+            target.edges.put(source, tie);
+            source.base += tie.base;
+            target.base += tie.base;
+        }
+        else {
+            tie.base += increment;
+            source.base += increment;
+            target.base += increment;
+        }
+        double weight = edge.getWeight();
+        reweigh(source, target, tie, weight);
+        reweigh(target, source, tie, weight);
+        tie.weight = weight;
+    }
+
+    // The Edge from a nick to one of its neighbours now has a new weight.
+    // The share of the nick's PageRank that each neighbour had is changed,
+    // so the difference is left for them to push on. The Tie's own weight
+    // is updated by the caller once both ends are done.
+    private void reweigh(Score from, Score to, Tie tie, double weight) {
+        double oldTotal = from.weight;
+        from.weight += weight - tie.weight;
+        if (from.rank == 0) {
+            return;
+        }
+        double newTotal = from.weight;
+        Iterator tieIt = from.edges.entrySet().iterator();
+        while (tieIt.hasNext()) {
+            Map.Entry entry = (Map.Entry) tieIt.next();
+            Score other = (Score) entry.getKey();
+            if (other == to) {
+                continue;
+            }
+            double w = ((Tie) entry.getValue()).weight;
+            double before = oldTotal > 0 ? w / oldTotal : 0;
+            double after = newTotal > 0 ? w / newTotal : 0;
+            other.residual += DAMPING * from.rank * (after - before);
+            queue(other);
+        }
+        double before = oldTotal > 0 ? tie.weight / oldTotal : 0;
+        double after = newTotal > 0 ? weight / newTotal : 0;
+        to.residual += DAMPING * from.rank * (after - before);
+        queue(to);
+    }
+
+    private void queue(Score score) {
+        if (!score.queued && Math.abs(score.residual) > TOLERANCE) {
+            score.queued = true;
+            _queue.add(score);
+        }
+    }
+
+    // Push PageRank on from each nick until only small amounts are left.
+    private void push() {
+        while (!_queue.isEmpty()) {
+            Score score = (Score) _queue.removeFirst();
+            score.queued = false;
+            if (_scores.get(score.nick()) != score) {
+                // The nick has gone.
+                continue;
+            }
+            double amount = score.residual;
+            score.residual = 0;
+            score.rank += amount;
+            _rankTotal += amount;
+            if (score.weight <= 0) {
+                continue;
+            }
+            Iterator tieIt = score.edges.entrySet().iterator();
+            while (tieIt.hasNext()) {
+                Map.Entry entry = (Map.Entry) tieIt.next();
+                Score other = (Score) entry.getKey();
+                other.residual += DAMPING * amount * ((Tie) entry.getValue()).weight / score.weight;
+                queue(other);
+            }
+        }
+    }
+
+    // Use the decayed weight of every Edge and work out again what is left
+    // to push at each nick.
+    private void resync() {
+        _unsynced = 0;
+        Iterator scoreIt = _scores.values().iterator();
+        while (scoreIt.hasNext()) {
+            Score score = (Score) scoreIt.next();
+            score.weight = 0;
+            Iterator tieIt = score.edges.values().iterator();
+            while (tieIt.hasNext()) {
+                Tie tie = (Tie) tieIt.next();
+                tie.weight = tie.base - _decayed;
+                score.weight += tie.weight;
+            }
+        }
+        _rankTotal = 0;
+        scoreIt = _scores.values().iterator();
+        while (scoreIt.hasNext()) {
+            Score score = (Score) scoreIt.next();
+            double incoming = 0;
+            Iterator tieIt = score.edges.entrySet().iterator();
+            while (tieIt.hasNext()) {
+                Map.Entry entry = (Map.Entry) tieIt.next();
+                Score other = (Score) entry.getKey();
+                incoming += other.rank * ((Tie) entry.getValue()).weight / other.weight;
+            }
+            score.residual = (1 - DAMPING) + DAMPING * incoming - score.rank;
+            _rankTotal += score.rank;
+        }
+        scoreIt = _scores.values().iterator();
+        while (scoreIt.hasNext()) {
+            queue((Score) scoreIt.next());
+        }
+        push();
+    }
+
+    // The centrality of a nick.
+    private class Score {
+
+        public Score(Node node) {
+            this.node = node;
+        }
+
+        public String nick() {
+            return node.getLowerCaseNick();
+        }
+
+        // The weighted degree is the total of the Edges' weights when they
+        // were added, less the decay since then.
+        public double getDegree() {
+            return base - edges.size() * _decayed;
+        }
+
+        public Node node;
+        public double base = 0;
+
+        // The total weight of the Edges, as seen by the PageRank.
+        public double weight = 0;
+
+        public double rank = 0;
+        public double residual = 0;
+        public boolean queued = false;
+
+        // HashMap of neighbouring Score -> Tie.
+        public HashMap edges = new HashMap();
+
+    }
+
+    // An Edge, which is shared by the Scores at both of its ends.
+    private static class Tie {
+        public double base;
+        public double weight = 0;
+    }
+
+    // HashMap of lower case nick -> Score.
+    private HashMap _scores = new HashMap();
+
+    // Scores with something left to push.
+    private LinkedList _queue = new LinkedList();
+
+    private double _rankTotal = 0;
+    private double _decayed = 0;
+    private double _unsynced = 0;
+
+}
@@ -0,0 +1,385 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.awt.Color;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Finds groups of nicks that mostly talk among themselves, so that each
+ * group can be drawn in its own colour.
+ * <p>
+ * Communities are found by label propagation: each nick starts in its own
+ * community, then repeatedly joins the community that it has the most
+ * Edge weight to. The nicks are shared out between several threads, and
+ * the work is done in the background, so frames are never held up. It is
+ * started again once CommunityThreshold Edges have changed, starting from
+ * the communities found last time, so only the changed part of the Graph
+ * takes long to settle.
+ * <p>
+ * Drawing reads whichever assignment was finished most recently.
+ */
+public class Communities extends GraphAdapter {
+
+    // Colours for the largest communities, largest first. Smaller
+    // communities and nicks on their own are drawn in NodeColor.
+    public static final Color[] PALETTE = {
+        new Color(230, 25, 75), new Color(60, 180, 75), new Color(255, 225, 25),
+        new Color(0, 130, 200), new Color(245, 130, 48), new Color(145, 30, 180),
+        new Color(70, 240, 240), new Color(240, 50, 230), new Color(210, 245, 60),
+        new Color(250, 190, 190), new Color(0, 128, 128), new Color(170, 110, 40)
+    };
+
+    // Label propagation stops after this many rounds, even if some nicks
+    // are still changing community.
+    public static final int MAX_ROUNDS = 20;
+
+    public Communities(int threshold) {
+        _threshold = Math.max(1, threshold);
+        _changes = _threshold;
+    }
+
+    // Returns the colour of a nick's community, or null if it has not been
+    // put in a coloured community.
+    public Color getColor(Node node) {
+        Integer index = (Integer) _colors.get(node.getLowerCaseNick());
+        return index == null ? null : PALETTE[index.intValue()];
+    }
+
+    // Returns the number of communities with more than one nick, as of the
+    // last assignment.
+    public int getCount() {
+        return _count;
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        _changes++;
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        _changes++;
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        _changes++;
+    }
+
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        _changes++;
+    }
+
+    // Start finding communities again if enough has changed and the last
+    // search has finished. The Graph is locked, so only a compact copy of
+    // its Edges is made here.
+    public synchronized void frameCompleted(Graph graph) {
+        if (_running || _changes < _threshold) {
+            return;
+        }
+        _changes = 0;
+        _running = true;
+        final Snapshot snapshot = new Snapshot(graph, _labels);
+        getCoordinator().execute(new Runnable() {
+            public void run() {
+                try {
+                    snapshot.propagate();
+                    publish(snapshot);
+                }
+                catch (RuntimeException e) {
+                    System.out.println("Could not find communities: " + e);
+                }
+                finally {
+                    synchronized (Communities.this) {
+                        _running = false;
+                    }
+                }
+            }
+        });
+    }
+
+    // Give the biggest communities a colour each, and remember every nick's
+    // community for next time.
+    private void publish(Snapshot snapshot) {
+        int n = snapshot.nicks.length;
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[snapshot.labels[i]]++;
+        }
+        Integer[] order = new Integer[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (sizes[i] > 1) {
+                order[count++] = Integer.valueOf(i);
+            }
+        }
+        final int[] finalSizes = sizes;
+        Arrays.sort(order, 0, count, new Comparator() {
+            public int compare(Object a, Object b) {
+                return finalSizes[((Integer) b).intValue()] - finalSizes[((Integer) a).intValue()];
+            }
+        });
+        Integer[] colorOf = new Integer[n];
+        for (int i = 0; i < count && i < PALETTE.length; i++) {
+            colorOf[order[i].intValue()] = Integer.valueOf(i);
+        }
+
+        HashMap colors = new HashMap();
+        HashMap labels = new HashMap();
+        for (int i = 0; i < n; i++) {
+            int label = snapshot.labels[i];
+            labels.put(snapshot.nicks[i], snapshot.nicks[label]);
+            if (colorOf[label] != null) {
+                colors.put(snapshot.nicks[i], colorOf[label]);
+            }
+        }
+        synchronized (this) {
+            _labels = labels;
+        }
+        _count = count;
+        _colors = colors;
+    }
+
+    // A copy of the Graph's Edges as arrays, so that it can be searched
+    // without holding the lock. Each community is labelled by the index of
+    // one of its nicks.
+    private static class Snapshot {
+
+        public Snapshot(Graph graph, HashMap lastLabels) {
+            Collection nodes = graph.getNodes();
+            nicks = new String[nodes.size()];
+            HashMap index = new HashMap(nodes.size() * 2);
+            Iterator nodeIt = nodes.iterator();
+            int n = 0;
+            while (nodeIt.hasNext()) {
+                Node node = (Node) nodeIt.next();
+                nicks[n] = node.getLowerCaseNick();
+                index.put(nicks[n], Integer.valueOf(n));
+                n++;
+            }
+
+            // Count the Edges at each nick, then fill them in.
+            Collection edges = graph.getEdges();
+            int[] sources = new int[edges.size()];
+            int[] targets = new int[edges.size()];
+            double[] edgeWeights = new double[edges.size()];
+            offsets = new int[n + 1];
+            Iterator edgeIt = edges.iterator();
+            int e = 0;
+            while (edgeIt.hasNext()) {
+                Edge edge = (Edge) edgeIt.next();
+                sources[e] = ((Integer) index.get(edge.getSource().getLowerCaseNick())).intValue();
+                targets[e] = ((Integer) index.get(edge.getTarget().getLowerCaseNick())).intValue();
+                edgeWeights[e] = edge.getWeight();
+                offsets[sources[e] + 1]++;
+                offsets[targets[e] + 1]++;
+                e++;
+            }
+            for (int i = 0; i < n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            neighbours = new int[e * 2];
+            weights = new double[e * 2];
+            int[] next = new int[n];
+            System.arraycopy(offsets, 0, next, 0, n);
+            for (int i = 0; i < e; i++) {
+                int s = sources[i];
+                int t = targets[i];
+                neighbours[next[s]] = t;
+                weights[next[s]++] = edgeWeights[i];
+                neighbours[next[t]] = s;
+                weights[next[t]++] = edgeWeights[i];
+            }
+
+            // Nicks start in the community they were in last time, if it
+            // still has a nick in it, or else on their own.
+            labels = new int[n];
+            for (int i = 0; i < n; i++) {
+                labels[i] = i;
+                String last = (String) lastLabels.get(nicks[i]);
+                if (last != null) {
+                    Integer label = (Integer) index.get(last);
+                    if (label != null) {
+                        labels[i] = label.intValue();
+                    }
+                }
+            }
+        }
+
+        // Move nicks between communities until they settle. Each thread
+        // updates the labels of its own nicks in place, so changes are
+        // seen by the other threads during the same round.
+        public void propagate() {
+            int n = nicks.length;
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, n / 1000));
+            order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Random random = new Random(n);
+            for (int round = 0; round < MAX_ROUNDS; round++) {
+                // Visiting the nicks in a new order each round stops one
+                // community from spreading through the rest.
+                for (int i = n - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+                int changed = 0;
+                if (threads == 1) {
+                    changed = update(0, n);
+                }
+                else {
+                    ArrayList futures = new ArrayList();
+                    for (int i = 0; i < threads; i++) {
+                        final int from = (int) ((long) n * i / threads);
+                        final int to = (int) ((long) n * (i + 1) / threads);
+                        futures.add(getWorkers().submit(new Callable() {
+                            public Object call() {
+                                return Integer.valueOf(update(from, to));
+                            }
+                        }));
+                    }
+                    for (int i = 0; i < futures.size(); i++) {
+                        try {
+                            changed += ((Integer) ((Future) futures.get(i)).get()).intValue();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        catch (ExecutionException e) {
+                            throw new RuntimeException(e.getCause().toString());
+                        }
+                    }
+                }
+                if (changed == 0) {
+                    break;
+                }
+            }
+            // Relabel each community by one of its own members, so labels
+            // inherited from last time can be looked up by nick.
+            int[] rename = new int[n];
+            Arrays.fill(rename, -1);
+            for (int i = 0; i < n; i++) {
+                int label = labels[i];
+                if (rename[label] < 0) {
+                    rename[label] = i;
+                }
+                labels[i] = rename[label];
+            }
+        }
+
+        // Move each nick in order[from..to-1] into the community it has the
+        // most Edge weight to. Ties are settled by staying put, then by the
+        // lowest label, so that the labels stop changing.
+        private int update(int from, int to) {
+            HashMap totals = new HashMap();
+            int changed = 0;
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                if (offsets[i] == offsets[i + 1]) {
+                    continue;
+                }
+                totals.clear();
+                for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                    Integer label = Integer.valueOf(labels[neighbours[j]]);
+                    double[] total = (double[]) totals.get(label);
+                    if (total == null) {
+                        total = new double[1];
+                        totals.put(label, total);
+                    }
+                    total[0] += weights[j];
+                }
+                int current = labels[i];
+                double[] currentTotal = (double[]) totals.get(Integer.valueOf(current));
+                int best = current;
+                double bestTotal = currentTotal == null ? 0 : currentTotal[0];
+                Iterator entryIt = totals.entrySet().iterator();
+                while (entryIt.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entryIt.next();
+                    int label = ((Integer) entry.getKey()).intValue();
+                    double total = ((double[]) entry.getValue())[0];
+                    if (total > bestTotal || (total == bestTotal && best != current && label < best)) {
+                        best = label;
+                        bestTotal = total;
+                    }
+                }
+                if (best != current) {
+                    labels[i] = best;
+                    changed++;
+                }
+            }
+            return changed;
+        }
+
+        public String[] nicks;
+        public int[] offsets;
+        public int[] neighbours;
+        public double[] weights;
+        public int[] labels;
+        private int[] order;
+
+    }
+
+    // Searches are run one at a time, and each shares its work out
+    // between the worker threads.
+    private static synchronized ExecutorService getCoordinator() {
+        if (_coordinator == null) {
+            _coordinator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy communities");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return _coordinator;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (_workers == null) {
+            _workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy communities worker");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return _workers;
+    }
+
+    private static ExecutorService _coordinator = null;
+    private static ExecutorService _workers = null;
+
+    private int _threshold;
+    private int _changes;
+    private boolean _running = false;
+
+    // HashMap of lower case nick -> lower case nick of a member of its
+    // community, from the last search.
+    private HashMap _labels = new HashMap();
+
+    // HashMap of lower case nick -> Integer index into PALETTE. This is
+    // replaced, never changed, so it can be read without locking.
+    private volatile HashMap _colors = new HashMap();
+    private volatile int _count = 0;
+
+}
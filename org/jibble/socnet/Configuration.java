@@ -22,6 +22,10 @@ import java.util.*;
 
 public class Configuration implements java.io.Serializable {
     
+    // As computed for PieSpy 0.4.0. Old restore.dat files include the
+    // Configuration they were saved with.
+    private static final long serialVersionUID = -2068849853958408867L;
+    
     public String server;
     public int port;
     public String serverPassword;
@@ -34,6 +38,34 @@ public class Configuration implements java.io.Serializable {
     public boolean createCurrent;
     public boolean createArchive;
     public boolean createRestorePoints;
+    public int restorePointInterval;
+    public int restorePointChanges;
+    public int restorePointGenerations;
+    public boolean createJournal;
+    public int journalFlushInterval;
+    public int historyInterval;
+    public int exportInterval;
+    public String exportFormats;
+    public int centralityLeaders;
+    public boolean communityColors;
+    public int communityThreshold;
+    public String networkGraph;
+    public String decayViews;
+    public int joinBufferSize;
+    public int maxNodes;
+    public String evictionPolicy;
+    public boolean offHeapStore;
+    public int httpPort;
+    public String outputProfiles;
+    public String outputFormat;
+    public boolean svgCompress;
+    public String archiveFormat;
+    public long archiveSegmentSize;
+    public int archiveKeyframeInterval;
+    public String animationFormat;
+    public int animationFrameDelay;
+    public int animationRotateMinutes;
+    public long animationRotateBytes;
     
     public Color backgroundColor;
     public Color channelColor;
@@ -58,6 +90,10 @@ public class Configuration implements java.io.Serializable {
     public int nodeRadius;
     public double edgeThreshold;
     public boolean showEdges;
+    public boolean levelOfDetail;
+    public int edgeBudget;
+    public int labelBudget;
+    public int labelCacheSize;
     public boolean verbose;
     public String encoding;
     
@@ -78,6 +114,34 @@ public class Configuration implements java.io.Serializable {
         createCurrent = getBoolean("CreateCurrent");
         createArchive = getBoolean("CreateArchive");
         createRestorePoints = getBoolean("CreateRestorePoints");
+        restorePointInterval = getInt("RestorePointInterval", 60);
+        restorePointChanges = getInt("RestorePointChanges", 0);
+        restorePointGenerations = getInt("RestorePointGenerations", 3);
+        createJournal = getBoolean("CreateJournal", false);
+        journalFlushInterval = getInt("JournalFlushInterval", 200);
+        historyInterval = getInt("HistoryInterval", 0);
+        exportInterval = getInt("ExportInterval", 0);
+        exportFormats = getString("ExportFormats", "graphml");
+        centralityLeaders = getInt("CentralityLeaders", 0);
+        communityColors = getBoolean("CommunityColors", false);
+        communityThreshold = getInt("CommunityThreshold", 50);
+        networkGraph = getString("NetworkGraph", "");
+        decayViews = getString("DecayViews", "");
+        joinBufferSize = getInt("JoinBufferSize", 1);
+        maxNodes = getInt("MaxNodes", 0);
+        evictionPolicy = getString("EvictionPolicy", "lru");
+        offHeapStore = getBoolean("OffHeapStore", false);
+        httpPort = getInt("HttpPort", 0);
+        outputProfiles = getString("OutputProfiles", "");
+        outputFormat = getString("OutputFormat", "png").toLowerCase();
+        svgCompress = getBoolean("SvgCompress", false);
+        archiveFormat = getString("ArchiveFormat", "png").toLowerCase();
+        archiveSegmentSize = getLong("ArchiveSegmentSize", 64 * 1024 * 1024);
+        archiveKeyframeInterval = getInt("ArchiveKeyframeInterval", 100);
+        animationFormat = getString("AnimationFormat", "none").toLowerCase();
+        animationFrameDelay = getInt("AnimationFrameDelay", 200);
+        animationRotateMinutes = getInt("AnimationRotateMinutes", 60);
+        animationRotateBytes = getLong("AnimationRotateBytes", 0);
         
         backgroundColor = getColor("BackgroundColor");
         channelColor = getColor("ChannelColor");
@@ -102,6 +166,10 @@ public class Configuration implements java.io.Serializable {
         nodeRadius = getInt("NodeRadius");
         edgeThreshold = getDouble("EdgeThreshold");
         showEdges = getBoolean("ShowEdges");
+        levelOfDetail = getBoolean("LevelOfDetail", false);
+        edgeBudget = getInt("EdgeBudget", 1000);
+        labelBudget = getInt("LabelBudget", 300);
+        labelCacheSize = getInt("LabelCacheSize", 2000);
         verbose = getBoolean("Verbose");
         encoding = getString("Encoding");
         
@@ -112,11 +180,37 @@ public class Configuration implements java.io.Serializable {
         return Integer.parseInt(value);
     }
     
+    public long getLong(String label) throws NoSuchElementException {
+        String value = getString(label);
+        return Long.parseLong(value);
+    }
+    
     public double getDouble(String label) throws NoSuchElementException {
         String value = getString(label);
         return Double.parseDouble(value);
     }
     
+    // Returns the settings for one of several servers run by one bot. A
+    // setting given as name.Setting overrides Setting. Unless the server
+    // has its own OutputDirectory, its files go in a directory named after
+    // it within the main OutputDirectory.
+    public static Properties getSection(Properties p, String name) {
+        Properties section = new Properties();
+        section.putAll(p);
+        String prefix = name + ".";
+        Iterator keyIt = p.keySet().iterator();
+        while (keyIt.hasNext()) {
+            String key = (String) keyIt.next();
+            if (key.startsWith(prefix)) {
+                section.put(key.substring(prefix.length()), p.get(key));
+            }
+        }
+        if (!p.containsKey(prefix + "OutputDirectory")) {
+            section.put("OutputDirectory", new File(p.getProperty("OutputDirectory", "."), name).getPath());
+        }
+        return section;
+    }
+    
     public File getFile(String label) throws NoSuchElementException {
         String value = getString(label);
         return new File(value);
@@ -151,5 +245,37 @@ public class Configuration implements java.io.Serializable {
         return value;
     }
     
+    // The following methods are used for newer settings, which may not be
+    // present in older config files.
+    
+    public String getString(String label, String defaultValue) {
+        String value = properties.getProperty(label);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+    
+    public int getInt(String label, int defaultValue) {
+        return Integer.parseInt(getString(label, String.valueOf(defaultValue)));
+    }
+    
+    public long getLong(String label, long defaultValue) {
+        return Long.parseLong(getString(label, String.valueOf(defaultValue)));
+    }
+    
+    public double getDouble(String label, double defaultValue) {
+        return Double.parseDouble(getString(label, String.valueOf(defaultValue)));
+    }
+    
+    public boolean getBoolean(String label, boolean defaultValue) {
+        return Boolean.valueOf(getString(label, String.valueOf(defaultValue))).booleanValue();
+    }
+    
+    // Some settings may be overridden for a single channel, for example
+    // "OutputFormat.#channel = svg". Channel names must be in lower case.
+    public String getChannelString(String channel, String label, String defaultValue) {
+        return getString(label + "." + channel.toLowerCase(), defaultValue);
+    }
     
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects the changes made to a Graph during each frame and sends them to
+ * web clients as Server-Sent Events, so that they can draw the graph
+ * themselves instead of downloading each image.
+ * <p>
+ * A client first receives a "snapshot" event with the whole graph, in the
+ * same form as channel.json. After each frame it receives a "delta" event:
+ * <pre>
+ *   {"frame":123,"ops":[...]}
+ * </pre>
+ * The ops must be applied in order. Nicks are compared without case.
+ * <pre>
+ *   ["n",nick,weight]           a nick was added or its weight changed
+ *   ["-n",nick]                 a nick was removed, after its edges
+ *   ["r",oldNick,newNick]       a nick changed, replacing any newNick
+ *   ["e",source,target,weight]  an edge was added or its weight changed
+ *   ["-e",source,target]        an edge was removed
+ *   ["d",amount]                every edge and nick lost this much weight
+ *   ["p",[[nick,x,y],...]]      the new positions after the layout
+ * </pre>
+ * Weights are sent as their new values, so repeated changes to the same
+ * nick or edge within a frame are only sent once.
+ */
+public class DeltaStream extends GraphAdapter {
+
+    // Put in a client's queue when it is being disconnected.
+    public static final String CLOSED = "";
+
+    // Clients that fall this many frames behind are disconnected. They can
+    // connect again and start from a new snapshot.
+    public static final int MAX_QUEUED = 256;
+
+    // Start sending events to a new client. The returned queue holds the
+    // text of each event.
+    public BlockingQueue subscribe(Graph graph) {
+        LinkedBlockingQueue queue = new LinkedBlockingQueue();
+        synchronized (graph) {
+            String snapshot = WebServer.getGraphData(graph).replace('\n', ' ');
+            queue.add("event: snapshot\ndata: " + snapshot + "\n\n");
+            synchronized (this) {
+                _subscribers.add(queue);
+            }
+        }
+        return queue;
+    }
+
+    public synchronized void unsubscribe(BlockingQueue queue) {
+        _subscribers.remove(queue);
+    }
+
+    public synchronized int getSubscriberCount() {
+        return _subscribers.size();
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        if (!_subscribers.isEmpty()) {
+            _nodes.put(node.getLowerCaseNick(), node);
+        }
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        if (!_subscribers.isEmpty()) {
+            drain();
+            _ops.append(",[\"-n\",");
+            WebServer.appendString(_ops, node.toString());
+            _ops.append(']');
+        }
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        if (!_subscribers.isEmpty()) {
+            drain();
+            _ops.append(",[\"r\",");
+            WebServer.appendString(_ops, oldNick);
+            _ops.append(',');
+            WebServer.appendString(_ops, node.toString());
+            _ops.append(']');
+        }
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        if (!_subscribers.isEmpty()) {
+            _edges.put(edge, edge);
+        }
+    }
+
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        if (!_subscribers.isEmpty()) {
+            drain();
+            _ops.append(",[\"-e\",");
+            WebServer.appendString(_ops, edge.getSource().toString());
+            _ops.append(',');
+            WebServer.appendString(_ops, edge.getTarget().toString());
+            _ops.append(']');
+        }
+    }
+
+    public synchronized void graphDecayed(Graph graph, double amount) {
+        if (!_subscribers.isEmpty()) {
+            drain();
+            _ops.append(",[\"d\",").append((float) amount).append(']');
+        }
+    }
+
+    public synchronized void layoutCompleted(Graph graph) {
+        if (!_subscribers.isEmpty()) {
+            drain();
+            _ops.append(",[\"p\",[");
+            Iterator nodeIt = graph.getNodes().iterator();
+            boolean first = true;
+            while (nodeIt.hasNext()) {
+                Node node = (Node) nodeIt.next();
+                if (!first) {
+                    _ops.append(',');
+                }
+                first = false;
+                _ops.append('[');
+                WebServer.appendString(_ops, node.toString());
+                _ops.append(',').append((float) node.getX());
+                _ops.append(',').append((float) node.getY());
+                _ops.append(']');
+            }
+            _ops.append("]]");
+        }
+    }
+
+    // Send the changes made during the frame to every client.
+    public synchronized void frameCompleted(Graph graph) {
+        if (_subscribers.isEmpty()) {
+            return;
+        }
+        drain();
+        StringBuffer event = new StringBuffer(_ops.length() + 64);
+        event.append("id: ").append(graph.getFrameCount()).append('\n');
+        event.append("event: delta\n");
+        event.append("data: {\"frame\":").append(graph.getFrameCount());
+        event.append(",\"ops\":[");
+        if (_ops.length() > 0) {
+            // Skip the leading comma.
+            event.append(_ops.toString().substring(1));
+        }
+        event.append("]}\n\n");
+        _ops.setLength(0);
+
+        String text = event.toString();
+        Iterator queueIt = _subscribers.iterator();
+        while (queueIt.hasNext()) {
+            BlockingQueue queue = (BlockingQueue) queueIt.next();
+            if (queue.size() >= MAX_QUEUED) {
+                queueIt.remove();
+                queue.clear();
+                queue.add(CLOSED);
+            }
+            else {
+                queue.add(text);
+            }
+        }
+    }
+
+    // Write out the nick and edge weights collected since the last change
+    // that has to be sent in order.
+    private void drain() {
+        Iterator nodeIt = _nodes.values().iterator();
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            _ops.append(",[\"n\",");
+            WebServer.appendString(_ops, node.toString());
+            _ops.append(',').append((float) node.getWeight()).append(']');
+        }
+        _nodes.clear();
+        Iterator edgeIt = _edges.values().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            _ops.append(",[\"e\",");
+            WebServer.appendString(_ops, edge.getSource().toString());
+            _ops.append(',');
+            WebServer.appendString(_ops, edge.getTarget().toString());
+            _ops.append(',').append((float) edge.getWeight()).append(']');
+        }
+        _edges.clear();
+    }
+
+    // ArrayList of BlockingQueues, one for each client.
+    private ArrayList _subscribers = new ArrayList();
+
+    // The ops for the current frame, each starting with a comma.
+    private StringBuffer _ops = new StringBuffer();
+
+    // Nicks and Edges whose weights have changed, in the order they were
+    // first changed.
+    private LinkedHashMap _nodes = new LinkedHashMap();
+    private LinkedHashMap _edges = new LinkedHashMap();
+
+}
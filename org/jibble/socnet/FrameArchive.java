@@ -0,0 +1,295 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+
+/**
+ * A FrameArchive stores every encoded frame for a channel in a small number
+ * of large segment files, rather than creating one file per frame.
+ * An index file records where each frame can be found, so any frame can be
+ * read back without scanning the segments.
+ * <p>
+ * Segment files are named stem-00000.frames, stem-00001.frames, etc.
+ * and the index is stem-frames.idx. Each index entry is a fixed size,
+ * so the index can be memory-mapped and searched directly.
+ * <p>
+ * Delta records are only readable by decoding forward from the nearest
+ * keyframe before them, so writers should store a keyframe at regular
+ * intervals to keep random access cheap.
+ */
+public class FrameArchive {
+
+    // Encoding types for each frame record. A PNG record is a complete
+    // frame (a keyframe), while a DELTA record must be applied to the frame
+    // before it (see FrameDelta).
+    public static final int TYPE_PNG = 1;
+    public static final int TYPE_DELTA = 2;
+
+    // frame (int), segment (int), offset (long), length (int), type (int)
+    public static final int INDEX_ENTRY_SIZE = 24;
+
+    // Segments are memory-mapped by the Reader, which cannot map more
+    // than 2 GB at once, so no segment is allowed to grow beyond that.
+    public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    public FrameArchive(File dir, String stem, long segmentSize) throws IOException {
+        _dir = dir;
+        _stem = stem;
+        _segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+
+        // Discard any partially written index entry from an earlier crash.
+        _index = new RandomAccessFile(getIndexFile(), "rw");
+        long entries = _index.length() / INDEX_ENTRY_SIZE;
+        _index.setLength(entries * INDEX_ENTRY_SIZE);
+        _index.seek(_index.length());
+
+        if (entries > 0) {
+            _index.seek((entries - 1) * INDEX_ENTRY_SIZE);
+            _lastFrame = _index.readInt();
+            _segment = _index.readInt();
+            long offset = _index.readLong();
+            int length = _index.readInt();
+            _index.readInt();
+            // Anything after the last indexed frame was never committed.
+            openSegment(_segment);
+            _segmentFile.setLength(offset + length);
+        }
+        else {
+            openSegment(0);
+            _segmentFile.setLength(0);
+        }
+        _segmentFile.seek(_segmentFile.length());
+        _index.seek(_index.length());
+    }
+
+    // Append an encoded frame to the archive. Frame numbers must go up, as
+    // the index is searched by frame number.
+    public synchronized void append(int frame, byte[] data, int type) throws IOException {
+        if (frame <= _lastFrame) {
+            throw new IOException("Frame " + frame + " is not after the last archived frame, " + _lastFrame);
+        }
+        if (_segmentFile.length() > 0 && _segmentFile.length() + data.length > _segmentSize) {
+            openSegment(_segment + 1);
+            // A crash during an earlier rollover may have left some
+            // unindexed data in the new segment.
+            _segmentFile.setLength(0);
+        }
+
+        long offset = _segmentFile.length();
+        _segmentFile.seek(offset);
+        _segmentFile.write(data);
+
+        // The index entry is only written once the data is in place.
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putInt(frame);
+        entry.putInt(_segment);
+        entry.putLong(offset);
+        entry.putInt(data.length);
+        entry.putInt(type);
+        _index.write(entry.array());
+        _lastFrame = frame;
+    }
+
+    public int getLastFrame() {
+        return _lastFrame;
+    }
+
+    public synchronized void close() throws IOException {
+        _segmentFile.close();
+        _index.close();
+    }
+
+    private void openSegment(int segment) throws IOException {
+        if (_segmentFile != null) {
+            _segmentFile.close();
+        }
+        _segment = segment;
+        _segmentFile = new RandomAccessFile(getSegmentFile(_dir, _stem, segment), "rw");
+    }
+
+    private File getIndexFile() {
+        return getIndexFile(_dir, _stem);
+    }
+
+    public static File getIndexFile(File dir, String stem) {
+        return new File(dir, stem + "-frames.idx");
+    }
+
+    public static File getSegmentFile(File dir, String stem, int segment) {
+        String number = String.valueOf(segment);
+        while (number.length() < 5) {
+            number = "0" + number;
+        }
+        return new File(dir, stem + "-" + number + ".frames");
+    }
+
+    /**
+     * Provides read-only access to a FrameArchive. The index and each
+     * segment are memory-mapped, so reading a frame does not involve any
+     * copying beyond the final byte array.
+     */
+    public static class Reader {
+
+        public Reader(File dir, String stem) throws IOException {
+            _dir = dir;
+            _stem = stem;
+            FileInputStream in = new FileInputStream(getIndexFile(dir, stem));
+            FileChannel channel = in.getChannel();
+            long size = channel.size() - channel.size() % INDEX_ENTRY_SIZE;
+            _indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            channel.close();
+            in.close();
+            _entries = (int) (size / INDEX_ENTRY_SIZE);
+        }
+
+        public int size() {
+            return _entries;
+        }
+
+        public int getFrameNumber(int entry) {
+            return _indexBuffer.getInt(entry * INDEX_ENTRY_SIZE);
+        }
+
+        public int getType(int entry) {
+            return _indexBuffer.getInt(entry * INDEX_ENTRY_SIZE + 20);
+        }
+
+        // Returns the index entry for a frame number, or -1 if not found.
+        // Frames can only be appended in ascending order, so a binary
+        // search can be used.
+        public int findEntry(int frame) {
+            int low = 0;
+            int high = _entries - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int value = getFrameNumber(mid);
+                if (value < frame) {
+                    low = mid + 1;
+                }
+                else if (value > frame) {
+                    high = mid - 1;
+                }
+                else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        // Decode a frame, starting from the nearest keyframe if necessary.
+        // Returns null if the frame is not in the archive.
+        public BufferedImage readImage(int frame) throws IOException {
+            int entry = findEntry(frame);
+            if (entry < 0) {
+                return null;
+            }
+            int key = entry;
+            while (key > 0 && getType(key) != TYPE_PNG) {
+                key--;
+            }
+            if (getType(key) != TYPE_PNG) {
+                throw new IOException("No keyframe found before frame " + frame);
+            }
+
+            // Continue from the last decoded frame when reading forwards,
+            // otherwise start again from the keyframe.
+            int start;
+            if (_decodedPixels != null && _decodedEntry >= key && _decodedEntry <= entry) {
+                start = _decodedEntry + 1;
+            }
+            else {
+                BufferedImage keyImage = ImageIO.read(new ByteArrayInputStream(read(key)));
+                if (key == entry) {
+                    return keyImage;
+                }
+                _decodedWidth = keyImage.getWidth();
+                _decodedHeight = keyImage.getHeight();
+                _decodedPixels = FrameDelta.getPixels(keyImage);
+                start = key + 1;
+            }
+            for (int i = start; i <= entry; i++) {
+                FrameDelta.apply(_decodedPixels, _decodedWidth, _decodedHeight, read(i));
+            }
+            _decodedEntry = entry;
+
+            BufferedImage image = new BufferedImage(_decodedWidth, _decodedHeight, BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, _decodedWidth, _decodedHeight, _decodedPixels, 0, _decodedWidth);
+            return image;
+        }
+
+        // Read the raw bytes stored for an index entry.
+        public byte[] read(int entry) throws IOException {
+            int base = entry * INDEX_ENTRY_SIZE;
+            int segment = _indexBuffer.getInt(base + 4);
+            long offset = _indexBuffer.getLong(base + 8);
+            int length = _indexBuffer.getInt(base + 16);
+
+            MappedByteBuffer buffer = getSegment(segment, offset + length);
+            byte[] data = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) offset);
+            slice.get(data);
+            return data;
+        }
+
+        private MappedByteBuffer getSegment(int segment, long requiredSize) throws IOException {
+            if (segment >= _segments.length) {
+                MappedByteBuffer[] segments = new MappedByteBuffer[segment + 1];
+                System.arraycopy(_segments, 0, segments, 0, _segments.length);
+                _segments = segments;
+            }
+            MappedByteBuffer buffer = _segments[segment];
+            if (buffer == null || buffer.capacity() < requiredSize) {
+                // The last segment may have grown since it was mapped.
+                FileInputStream in = new FileInputStream(getSegmentFile(_dir, _stem, segment));
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                channel.close();
+                in.close();
+                _segments[segment] = buffer;
+            }
+            return buffer;
+        }
+
+        private File _dir;
+        private String _stem;
+        private MappedByteBuffer _indexBuffer;
+        private MappedByteBuffer[] _segments = new MappedByteBuffer[0];
+        private int _entries;
+
+        // The most recently decoded frame, so sequential reads are cheap.
+        private int _decodedEntry = -1;
+        private int[] _decodedPixels = null;
+        private int _decodedWidth;
+        private int _decodedHeight;
+
+    }
+
+    private File _dir;
+    private String _stem;
+    private long _segmentSize;
+    private RandomAccessFile _index;
+    private RandomAccessFile _segmentFile;
+    private int _segment = 0;
+    private int _lastFrame = 0;
+
+}
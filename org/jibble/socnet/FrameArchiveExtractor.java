@@ -0,0 +1,135 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.awt.image.BufferedImage;
+import java.text.NumberFormat;
+import javax.imageio.ImageIO;
+
+/**
+ * Exports a range of frames from a FrameArchive, either as individually
+ * numbered PNG files or as a single animated GIF.
+ * <p>
+ * Usage: FrameArchiveExtractor channelDirectory first last output
+ * <p>
+ * If output ends with ".gif", an animation is created. Otherwise output is
+ * taken to be a directory and each frame is written to it as a PNG file.
+ */
+public class FrameArchiveExtractor {
+
+    public FrameArchiveExtractor(File dir, String stem) throws IOException {
+        _stem = stem;
+        _reader = new FrameArchive.Reader(dir, stem);
+    }
+
+    // Decode a single frame from the archive.
+    public BufferedImage getFrame(int frame) throws IOException {
+        return _reader.readImage(frame);
+    }
+
+    // Write each frame in the range to the directory as a PNG file.
+    public int exportPNG(int first, int last, File outputDir) throws IOException {
+        NumberFormat nf = NumberFormat.getIntegerInstance();
+        nf.setMinimumIntegerDigits(8);
+        nf.setGroupingUsed(false);
+
+        int count = 0;
+        for (int entry = firstEntry(first); entry < _reader.size() && _reader.getFrameNumber(entry) <= last; entry++) {
+            int frame = _reader.getFrameNumber(entry);
+            File file = new File(outputDir, _stem + "-" + nf.format(frame) + ".png");
+            if (_reader.getType(entry) == FrameArchive.TYPE_PNG) {
+                // The stored bytes are already a PNG file, so copy them verbatim.
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(_reader.read(entry));
+                }
+                finally {
+                    out.close();
+                }
+            }
+            else {
+                ImageIO.write(getFrame(frame), "png", file);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // Write the range of frames to an animated GIF.
+    public int exportGIF(int first, int last, File file, int delayMillis) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            AnimatedGifWriter writer = new AnimatedGifWriter(out, delayMillis);
+            for (int entry = firstEntry(first); entry < _reader.size() && _reader.getFrameNumber(entry) <= last; entry++) {
+                BufferedImage image = getFrame(_reader.getFrameNumber(entry));
+                if (image != null) {
+                    writer.writeFrame(image);
+                }
+            }
+            int count = writer.getFrameCount();
+            writer.close();
+            return count;
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // Returns the first index entry whose frame number is at least frame.
+    private int firstEntry(int frame) {
+        int low = 0;
+        int high = _reader.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (_reader.getFrameNumber(mid) < frame) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: FrameArchiveExtractor channelDirectory first last output");
+            return;
+        }
+
+        File dir = new File(args[0]);
+        int first = Integer.parseInt(args[1]);
+        int last = Integer.parseInt(args[2]);
+        File output = new File(args[3]);
+
+        FrameArchiveExtractor extractor = new FrameArchiveExtractor(dir, dir.getName());
+        int count;
+        if (output.getName().toLowerCase().endsWith(".gif")) {
+            count = extractor.exportGIF(first, last, output, 200);
+        }
+        else {
+            output.mkdirs();
+            count = extractor.exportPNG(first, last, output);
+        }
+        System.out.println("Exported " + count + " frames to " + output);
+    }
+
+    private String _stem;
+    private FrameArchive.Reader _reader;
+
+}
@@ -0,0 +1,179 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import java.awt.Rectangle;
+import java.awt.image.*;
+
+/**
+ * FrameDelta encodes the difference between two frames of the same size as
+ * a list of dirty rectangles. Only the pixels inside these rectangles are
+ * stored, XORed against the previous frame so that unchanged pixels become
+ * zero, and the whole lot is deflated.
+ */
+public class FrameDelta {
+
+    // The frame is compared in square tiles of this size.
+    public static final int TILE_SIZE = 16;
+
+    private FrameDelta() {
+        // Static methods only.
+    }
+
+    // Returns the pixels of an image as a new array in ARGB format.
+    public static int[] getPixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            return data.clone();
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    // Find the rectangles of tiles that differ between the two frames.
+    public static ArrayList getDirtyRectangles(int[] previous, int[] current, int width, int height) {
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        // Runs of dirty tiles on each row of tiles.
+        ArrayList rectangles = new ArrayList();
+        HashMap open = new HashMap();
+        for (int ty = 0; ty < tilesY; ty++) {
+            boolean[] dirty = new boolean[tilesX];
+            for (int tx = 0; tx < tilesX; tx++) {
+                dirty[tx] = isTileDirty(previous, current, width, height, tx, ty);
+            }
+            HashMap stillOpen = new HashMap();
+            int tx = 0;
+            while (tx < tilesX) {
+                if (!dirty[tx]) {
+                    tx++;
+                    continue;
+                }
+                int start = tx;
+                while (tx < tilesX && dirty[tx]) {
+                    tx++;
+                }
+                // Grow the rectangle from the row above if it spans the same tiles.
+                Integer key = Integer.valueOf(start * tilesX + tx);
+                Rectangle rect = (Rectangle) open.remove(key);
+                if (rect == null) {
+                    rect = new Rectangle(start, ty, tx - start, 1);
+                    rectangles.add(rect);
+                }
+                else {
+                    rect.height++;
+                }
+                stillOpen.put(key, rect);
+            }
+            open = stillOpen;
+        }
+
+        // Convert from tiles to pixels.
+        Iterator rectIt = rectangles.iterator();
+        while (rectIt.hasNext()) {
+            Rectangle rect = (Rectangle) rectIt.next();
+            rect.x *= TILE_SIZE;
+            rect.y *= TILE_SIZE;
+            rect.width = Math.min(rect.width * TILE_SIZE, width - rect.x);
+            rect.height = Math.min(rect.height * TILE_SIZE, height - rect.y);
+        }
+        return rectangles;
+    }
+
+    // Encode the changes from previous to current.
+    public static byte[] encode(int[] previous, int[] current, int width, int height) throws IOException {
+        ArrayList rectangles = getDirtyRectangles(previous, current, width, height);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater()));
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(rectangles.size());
+        Iterator rectIt = rectangles.iterator();
+        while (rectIt.hasNext()) {
+            Rectangle rect = (Rectangle) rectIt.next();
+            out.writeShort(rect.x);
+            out.writeShort(rect.y);
+            out.writeShort(rect.width);
+            out.writeShort(rect.height);
+            // Write each byte of the pixels as a separate plane, as the
+            // planes compress far better than interleaved ARGB values.
+            byte[] plane = new byte[rect.width * rect.height];
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                int i = 0;
+                for (int y = rect.y; y < rect.y + rect.height; y++) {
+                    int offset = y * width;
+                    for (int x = rect.x; x < rect.x + rect.width; x++) {
+                        plane[i++] = (byte) ((previous[offset + x] ^ current[offset + x]) >>> shift);
+                    }
+                }
+                out.write(plane);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // Apply an encoded delta to the pixels of the previous frame.
+    public static void apply(int[] pixels, int width, int height, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(delta))));
+        if (in.readInt() != width || in.readInt() != height) {
+            throw new IOException("Frame delta does not match the size of the previous frame.");
+        }
+        int count = in.readInt();
+        for (int r = 0; r < count; r++) {
+            int rx = in.readUnsignedShort();
+            int ry = in.readUnsignedShort();
+            int rw = in.readUnsignedShort();
+            int rh = in.readUnsignedShort();
+            byte[] plane = new byte[rw * rh];
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                in.readFully(plane);
+                int i = 0;
+                for (int y = ry; y < ry + rh; y++) {
+                    int offset = y * width;
+                    for (int x = rx; x < rx + rw; x++) {
+                        pixels[offset + x] ^= (plane[i++] & 0xff) << shift;
+                    }
+                }
+            }
+        }
+        in.close();
+    }
+
+    private static boolean isTileDirty(int[] previous, int[] current, int width, int height, int tx, int ty) {
+        int x1 = tx * TILE_SIZE;
+        int x2 = Math.min(x1 + TILE_SIZE, width);
+        int y1 = ty * TILE_SIZE;
+        int y2 = Math.min(y1 + TILE_SIZE, height);
+        for (int y = y1; y < y2; y++) {
+            int offset = y * width;
+            for (int x = x1; x < x2; x++) {
+                if (previous[offset + x] != current[offset + x]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
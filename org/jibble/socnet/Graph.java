@@ -21,6 +21,7 @@ import java.io.*;
 import java.awt.*;
 import java.awt.image.*;
 import java.text.*;
+import java.util.concurrent.*;
 import javax.imageio.ImageIO;
 
 /**
@@ -29,6 +30,10 @@ import javax.imageio.ImageIO;
  */
 public class Graph implements java.io.Serializable {
     
+    // Pinned to the value computed for PieSpy 0.4.0, so that Graphs saved
+    // in old restore.dat files can still be read and migrated.
+    private static final long serialVersionUID = 4032536645319340095L;
+    
     public Graph(String label, Configuration config) {
         _label = label;
         this.config = config;
@@ -47,7 +52,15 @@ public class Graph implements java.io.Serializable {
     }
 
     // Pass a message through the list of InferenceHeuristics.
-    public void infer(String nick, String message) {
+    public void infer(final String nick, final String message) {
+        runWithSlot(new Runnable() {
+            public void run() {
+                inferNow(nick, message);
+            }
+        });
+    }
+    
+    private synchronized void inferNow(String nick, String message) {
         if (config.ignoreSet.contains(nick.toLowerCase())) {
             return;
         }
@@ -59,7 +72,13 @@ public class Graph implements java.io.Serializable {
     }
     
     // Add a Node to the Graph.
-    public void addNode(Node node) {
+    public synchronized void addNode(Node node) {
+        incrementNode(node);
+        trimNodes();
+    }
+    
+    // Add a Node, or increase its weight if it is already in the Graph.
+    private void incrementNode(Node node) {
         
         // Only add the Node to the HashMap if it's not already in there.
         if (_nodes.containsKey(node)) {
@@ -71,19 +90,74 @@ public class Graph implements java.io.Serializable {
         
         // Increment the weight of the Node.
         node.setWeight(node.getWeight() + 1);
+        
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).nodeAdded(this, node);
+        }
+    }
+
+    // Add many Nodes at once, such as a channel's user list. This has the
+    // same effect as calling addNode for each nick, but the Graph is only
+    // locked once and the HashMap is only grown once.
+    public synchronized void addNodes(Collection nicks) {
+        int needed = _nodes.size() + nicks.size();
+        if (nicks.size() > _nodes.size()) {
+            HashMap nodes = new HashMap(needed * 4 / 3 + 1);
+            nodes.putAll(_nodes);
+            _nodes = nodes;
+        }
+
+        ArrayList listeners = getListeners();
+        Iterator nickIt = nicks.iterator();
+        while (nickIt.hasNext()) {
+            Node node = new Node((String) nickIt.next());
+            Node existing = (Node) _nodes.get(node);
+            if (existing == null) {
+                _nodes.put(node, node);
+            }
+            else {
+                node = existing;
+            }
+            node.setWeight(node.getWeight() + 1);
+            for (int i = 0; i < listeners.size(); i++) {
+                ((GraphListener) listeners.get(i)).nodeAdded(this, node);
+            }
+        }
+        trimNodes();
     }
 
     // Add an Edge to the Graph. Increment the weighting if it already exists.    
-    public boolean addEdge(Node source, Node target, double weight) {
+    public boolean addEdge(final Node source, final Node target, final double weight) {
+        final boolean[] added = new boolean[1];
+        runWithSlot(new Runnable() {
+            public void run() {
+                added[0] = addEdgeNow(source, target, weight);
+            }
+        });
+        return added[0];
+    }
+    
+    private synchronized boolean addEdgeNow(Node source, Node target, double weight) {
         // Do not add self-edges or weights that are not positive.
         if (source.equals(target) || weight <= 0) {
             return false;
         }
         
         // Ensure both Nodes are in the Graph first.
-        addNode(source);
-        addNode(target);
-
+        incrementNode(source);
+        incrementNode(target);
+        
+        increaseEdge(source, target, weight);
+        trimNodes();
+        
+        // The graph has changed.
+        makeNextImage();
+        return true;
+    }
+    
+    // Add weight to the Edge between two Nodes that are already in the
+    // Graph, creating the Edge if it doesn't exist yet.
+    synchronized void increaseEdge(Node source, Node target, double weight) {
         // Add the Edge to the HashMap, or find the existing entry.
         Edge edge = new Edge(source, target);
         if (_edges.containsKey(edge)) {
@@ -98,34 +172,93 @@ public class Graph implements java.io.Serializable {
         // Increment the edge weight.
         edge.setWeight(edge.getWeight() + weight);
         
-        // The graph has changed.
-        makeNextImage();
-        return true;
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).edgeAdded(this, edge, weight);
+        }
     }
     
     // Remove a Node from the Graph, along with all of its emanating Edges.
-    public boolean removeNode(Node node) {
+    public synchronized boolean removeNode(Node node) {
+        Node removed = removeNode(node, true);
+        return removed != null;
+    }
+    
+    // Returns the removed Node, or null if it was not in the Graph. Merges
+    // remove Nodes without reporting them to the listeners as removed.
+    private Node removeNode(Node node, boolean notify) {
         if (_nodes.containsKey(node)) {
             // Remove the Node from the HashMap.
-            _nodes.remove(node);
+            Node removed = (Node) _nodes.remove(node);
+            getLabelCache().invalidate(removed.toString());
             
             // Remove all Edges that connect to the removed Node.
             Iterator edgeIt = _edges.keySet().iterator();
             while (edgeIt.hasNext()) {
                 Edge edge = (Edge) edgeIt.next();
                 if (edge.getSource().equals(node) || edge.getTarget().equals(node)) {
+                    for (int i = 0; i < getListeners().size(); i++) {
+                        ((GraphListener) _listeners.get(i)).edgeRemoved(this, edge);
+                    }
                     edgeIt.remove();
                 }
             }
-            return true;
+            
+            if (notify) {
+                for (int i = 0; i < getListeners().size(); i++) {
+                    ((GraphListener) _listeners.get(i)).nodeRemoved(this, removed);
+                }
+            }
+            return removed;
         }
-        return false;
+        return null;
+    }
+    
+    // Remove the least active Nodes while there are more than MaxNodes.
+    // While a journal is replayed, the removals are replayed instead.
+    private void trimNodes() {
+        NodeEvictor evictor = getNodeEvictor();
+        if (evictor == null || _replaying) {
+            return;
+        }
+        while (_nodes.size() > evictor.getMaxNodes()) {
+            Node node = evictor.next();
+            if (node == null) {
+                break;
+            }
+            removeNode(node, true);
+        }
+    }
+    
+    // Returns the NodeEvictor, or null if the number of Nodes is not
+    // limited. It is created when it is first needed, as it is not saved
+    // in restore points.
+    private NodeEvictor getNodeEvictor() {
+        if (!_evictorChecked) {
+            _evictorChecked = true;
+            int maxNodes = Integer.parseInt(config.getChannelString(_label, "MaxNodes", String.valueOf(config.maxNodes)));
+            if (maxNodes > 0) {
+                String policy = config.getChannelString(_label, "EvictionPolicy", config.evictionPolicy);
+                _evictor = new NodeEvictor(this, maxNodes, NodeEvictor.getPolicy(policy));
+                addGraphListener(_evictor);
+            }
+        }
+        return _evictor;
     }
     
     // Merges oldNode and newNode by:
     // 1) Removing newNode from the Graph and removing all emanating Edges.
     // 2) Renaming the nick of oldNode to match the nick of newNode.
-    public void mergeNode(Node oldNode, Node newNode) {
+    public void mergeNode(final Node oldNode, final Node newNode) {
+        runWithSlot(new Runnable() {
+            public void run() {
+                mergeNode(oldNode, newNode, true);
+            }
+        });
+    }
+    
+    // As above, but only draws a new frame if drawFrame is true. The caller
+    // must already have a render slot if it is.
+    synchronized void mergeNode(Node oldNode, Node newNode, boolean drawFrame) {
         if (!this.contains(oldNode)) {
             // If the oldNode is not in this Graph, we needn't do anything.
             return;
@@ -138,7 +271,7 @@ public class Graph implements java.io.Serializable {
         // Warning: Some nick changes only differ in case, so make sure
         // we're not inadvertantly removing oldNick, too!
         if (!newNode.equals(oldNode)) {
-            removeNode(newNode);
+            removeNode(newNode, false);
         }
 
         // Important: HashMap keys are allocated to locations based on their
@@ -175,6 +308,8 @@ public class Graph implements java.io.Serializable {
         // Remove, rename and replace the oldNode in the HashMap.
         oldNode = get(oldNode);
         _nodes.remove(oldNode);
+        String oldNick = oldNode.toString();
+        getLabelCache().invalidate(oldNick);
         oldNode.setNick(nick);
         _nodes.put(oldNode, oldNode);
         
@@ -185,7 +320,11 @@ public class Graph implements java.io.Serializable {
             _edges.put(edge, edge);
         }
         
-        if (getConnectedNodes().contains(oldNode)) {
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).nodeRenamed(this, oldNode, oldNick);
+        }
+        
+        if (drawFrame && getConnectedNodes().contains(oldNode)) {
             // The changed node is in the graph, so it needs redrawing.
             makeNextImage();
         }
@@ -222,7 +361,7 @@ public class Graph implements java.io.Serializable {
     }
     
     // Apply the temporal decay to the Graph.
-    public void decay(double amount) {
+    public synchronized void decay(double amount) {
         
         // Decrease all Edge weightings and remove non-positive Edges.
         Iterator edgeIt = _edges.keySet().iterator();
@@ -230,6 +369,9 @@ public class Graph implements java.io.Serializable {
             Edge edge = (Edge) edgeIt.next();
             edge.setWeight(edge.getWeight() - amount);
             if (edge.getWeight() <= 0) {
+                for (int i = 0; i < getListeners().size(); i++) {
+                    ((GraphListener) _listeners.get(i)).edgeRemoved(this, edge);
+                }
                 edgeIt.remove();
             }
         }
@@ -244,6 +386,26 @@ public class Graph implements java.io.Serializable {
             }
         }
         
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).graphDecayed(this, amount);
+        }
+    }
+    
+    public synchronized void addGraphListener(GraphListener listener) {
+        getListeners().add(listener);
+    }
+    
+    public synchronized void removeGraphListener(GraphListener listener) {
+        getListeners().remove(listener);
+    }
+    
+    // Listeners are not saved in restore points, so the list is created
+    // lazily.
+    private ArrayList getListeners() {
+        if (_listeners == null) {
+            _listeners = new ArrayList();
+        }
+        return _listeners;
     }
     
     // Returns the set of all Nodes that have emanating Edges.
@@ -260,7 +422,7 @@ public class Graph implements java.io.Serializable {
     }
 
     // Applies the spring embedder.
-    public void doLayout(int iterations) {
+    public synchronized void doLayout(int iterations) {
         
         // For performance, copy each set into an array.
         HashSet visibleNodes = getConnectedNodes();
@@ -424,42 +586,58 @@ public class Graph implements java.io.Serializable {
             maxY = midY + (minSize / 2);
         }
         
-        // Work out the maximum weight.
-        Iterator edgeIt = _edges.keySet().iterator();
-        while (edgeIt.hasNext()) {
-            Edge edge = (Edge) edgeIt.next();
-            if (edge.getWeight() > maxWeight) {
-                maxWeight = edge.getWeight();
-            }
-        }
+        // The maximum weight is kept by the TieIndex.
+        maxWeight = getTieIndex().getMaxWeight();
         
         // Jibble the boundaries to maintain the aspect ratio.
-        double xyRatio = ((maxX - minX) / (maxY - minY)) / (width / height);
-        if (xyRatio > 1) {
-            // diagram is wider than it is high.
-            double dy = maxY - minY;
-            dy = dy * xyRatio - dy;
-            minY = minY - dy / 2;
-            maxY = maxY + dy / 2;
-        }
-        else if (xyRatio < 1) {
-            // Diagram is higher than it is wide.
-            double dx = maxX - minX;
-            dx = dx / xyRatio - dx;
-            minX = minX - dx / 2;
-            maxX = maxX + dx / 2;
-        }
+        _rawBounds = new Bounds(minX, maxX, minY, maxY, maxWeight);
+        Bounds bounds = _rawBounds.fitTo(width, height);
+        minX = bounds.minX;
+        maxX = bounds.maxX;
+        minY = bounds.minY;
+        maxY = bounds.maxY;
         
     }
+    
+    // Returns the Bounds worked out by the last call to calcBounds.
+    public Bounds getBounds() {
+        return new Bounds(minX, maxX, minY, maxY, maxWeight);
+    }
+    
+    // Returns the Bounds from the last call to calcBounds, but fitted to
+    // an output of a different size.
+    public Bounds getBounds(int width, int height) {
+        if (_rawBounds == null) {
+            return getBounds();
+        }
+        return _rawBounds.fitTo(width, height);
+    }
 
     public BufferedImage drawImage(int width, int height, int borderSize, int nodeRadius, double edgeThreshold, boolean showEdges) {
+        return drawImage(getBounds(), width, height, 1.0, borderSize, nodeRadius, edgeThreshold, showEdges);
+    }
+    
+    // Draw the layout within the given Bounds. The diagram is laid out as if
+    // the image was width / scale by height / scale, then scaled up to fill
+    // the image. This allows thumbnails and high resolution images to look
+    // the same as the normal output. This does not modify the Graph, so it
+    // may be called from several threads at once.
+    public BufferedImage drawImage(Bounds bounds, int imageWidth, int imageHeight, double scale, int borderSize, int nodeRadius, double edgeThreshold, boolean showEdges) {
 
         HashSet nodes = getConnectedNodes();
+        double minX = bounds.minX;
+        double maxX = bounds.maxX;
+        double minY = bounds.minY;
+        double maxY = bounds.maxY;
+        double maxWeight = bounds.maxWeight;
        
         // Now actually draw the thing...
     
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = image.createGraphics();
+        g.scale(scale, scale);
+        int width = (int) Math.round(imageWidth / scale);
+        int height = (int) Math.round(imageHeight / scale);
         
         g.setColor(config.backgroundColor);
         g.fillRect(1, 1, width - 2, height - 2);
@@ -474,19 +652,30 @@ public class Graph implements java.io.Serializable {
 
         g.setColor(config.channelColor);
         g.setFont(new Font("SansSerif", Font.BOLD, 64));
-        g.drawString(_label, borderSize + 20, 80);
+        g.drawString(getDisplayLabel(), borderSize + 20, 80);
 
         g.setColor(config.titleColor);
         g.setFont(new Font("SansSerif", Font.BOLD, 18));
         g.drawString("A Social Network Diagram for an IRC Channel", borderSize, borderSize - nodeRadius - 15);
-        g.drawString(_caption, borderSize, height + borderSize * 2 - 5 - 50);
+        g.drawString(getDisplayCaption(), borderSize, height + borderSize * 2 - 5 - 50);
         g.setFont(new Font("SansSerif", Font.PLAIN, 12));
         g.drawString("Generated by " + config.nick + " on " + config.server + " using " + SocialNetworkBot.VERSION, borderSize, height + borderSize * 2 - 5 - 30);
         g.drawString("Blue edge thickness and shortness represents strength of relationship", borderSize, height + borderSize * 2 - 5 - 15);
         g.drawString("http://www.jibble.org/piespy/ - This frame was drawn at " + new Date(), borderSize, height + borderSize * 2 - 5);
         
+        // For large graphs, only draw what can actually be seen.
+        Collection edges = _edges.keySet();
+        HashSet labelled = null;
+        g.setFont(new Font("SansSerif", Font.PLAIN, 10));
+        if (config.levelOfDetail) {
+            LevelOfDetail lod = new LevelOfDetail(this, bounds, width, height, borderSize, config.edgeBudget, edgeThreshold);
+            edges = Arrays.asList(lod.getEdges());
+            nodes = new HashSet(Arrays.asList(lod.getNodes()));
+            labelled = lod.getLabelledNodes(g.getFontMetrics(), nodeRadius, config.labelBudget);
+        }
+        
         // Draw all edges...
-        Iterator edgeIt = _edges.keySet().iterator();
+        Iterator edgeIt = edges.iterator();
         while (edgeIt.hasNext()) {
             Edge edge = (Edge) edgeIt.next();
             
@@ -512,14 +701,13 @@ public class Graph implements java.io.Serializable {
         
         // Draw all nodes...
         g.setStroke(new BasicStroke(2.0f));
-        g.setFont(new Font("SansSerif", Font.PLAIN, 10));
         Iterator nodeIt = nodes.iterator();
         while (nodeIt.hasNext()) {
             Node node = (Node) nodeIt.next();
             int x1 = (int) (width * (node.getX() - minX) / (maxX - minX)) + borderSize;
             int y1 = (int) (height * (node.getY() - minY) / (maxY - minY)) + borderSize;
             //int newNodeRadius = (int) Math.log((node.getWeight() + 1) / 10) + nodeRadius;
-            g.setColor(config.nodeColor);
+            g.setColor(getNodeColor(node));
             g.fillOval(x1 - nodeRadius, y1 - nodeRadius, nodeRadius * 2, nodeRadius * 2);
             g.setColor(config.edgeColor);
             g.drawOval(x1 - nodeRadius, y1 - nodeRadius, nodeRadius * 2, nodeRadius * 2);
@@ -528,13 +716,213 @@ public class Graph implements java.io.Serializable {
             //g.drawString(node.toString(), x1 + nodeRadius - 1, y1 - nodeRadius);
             //g.drawString(node.toString(), x1 + nodeRadius, y1 - nodeRadius + 1);
             //g.drawString(node.toString(), x1 + nodeRadius, y1 - nodeRadius - 1);
-            g.setColor(config.labelColor);
-            g.drawString(node.toString(), x1 + nodeRadius, y1 - nodeRadius);
+            if (labelled == null || labelled.contains(node)) {
+                g.setColor(config.labelColor);
+                getLabelCache().drawLabel(g, node.toString(), x1 + nodeRadius, y1 - nodeRadius);
+            }
         }
         
         return image;
     }
     
+    // Package accessors used by the other renderers.
+    
+    Collection getVisibleNodes() {
+        return getConnectedNodes();
+    }
+    
+    Collection getEdges() {
+        return _edges.keySet();
+    }
+    
+    Collection getNodes() {
+        return _nodes.keySet();
+    }
+    
+    java.util.List getHeuristics() {
+        return _heuristics;
+    }
+    
+    // Used when restoring a snapshot. These do not change any weights.
+    void putNode(Node node) {
+        _nodes.put(node, node);
+    }
+    
+    void putEdge(Edge edge) {
+        _edges.put(edge, edge);
+    }
+    
+    void setFrameCount(int frameCount) {
+        _frameCount = frameCount;
+    }
+    
+    // Each change recorded in the journal is numbered. The number of the
+    // last change is saved in snapshots, so the journal can be replayed
+    // from the right place.
+    synchronized long nextJournalSequence() {
+        return ++_journalSequence;
+    }
+    
+    synchronized long getJournalSequence() {
+        return _journalSequence;
+    }
+    
+    void setJournalSequence(long journalSequence) {
+        _journalSequence = journalSequence;
+    }
+    
+    void setReplaying(boolean replaying) {
+        _replaying = replaying;
+    }
+    
+    // Called by the RestorePointWriter, with this Graph locked, after it
+    // has taken a snapshot.
+    void snapshotTaken() {
+        if (_journal != null) {
+            _journal.rotate();
+        }
+    }
+    
+    // Start keeping a snapshot of this Graph every HistoryInterval minutes.
+    public synchronized void openHistory() {
+        if (_history == null) {
+            File dir = new File(config.outputDirectory, getStrippedChannel());
+            dir.mkdir();
+            _history = new HistoryStore(dir, getStem(), config.historyInterval * 60000L);
+            addGraphListener(_history);
+        }
+    }
+    
+    // Export this Graph every ExportInterval minutes.
+    public synchronized void openExports() {
+        if (_exports == null) {
+            File dir = new File(config.outputDirectory, getStrippedChannel());
+            dir.mkdir();
+            String formats = config.getChannelString(_label, "ExportFormats", config.exportFormats);
+            _exports = new ScheduledExport(dir, getStem(), formats, config.exportInterval * 60000L);
+            addGraphListener(_exports);
+        }
+    }
+    
+    // Keep a copy of this Graph in memory mapped files. If this Graph is
+    // empty, it is loaded from the files instead.
+    public synchronized void openStore() throws IOException {
+        if (_store == null) {
+            File dir = new File(config.outputDirectory, getStrippedChannel());
+            dir.mkdir();
+            MappedGraphStore store = new MappedGraphStore(dir, getStem());
+            if (_nodes.isEmpty()) {
+                store.load(this);
+            }
+            else {
+                store.copy(this);
+            }
+            addGraphListener(store);
+            _store = store;
+        }
+    }
+    
+    MappedGraphStore getStore() {
+        return _store;
+    }
+    
+    // Returns the Centrality of each nick. It is created when it is first
+    // needed, as it is not saved in restore points.
+    public synchronized Centrality getCentrality() {
+        if (_centrality == null) {
+            _centrality = new Centrality(this);
+            addGraphListener(_centrality);
+        }
+        return _centrality;
+    }
+    
+    // Returns the TieIndex of the strongest Edges. It is created when it is
+    // first needed, as it is not saved in restore points.
+    public synchronized TieIndex getTieIndex() {
+        if (_tieIndex == null) {
+            _tieIndex = new TieIndex(this);
+            addGraphListener(_tieIndex);
+        }
+        return _tieIndex;
+    }
+    
+    // Returns the Communities used to colour the nicks, or null if they are
+    // not coloured.
+    public synchronized Communities getCommunities() {
+        if (_communities == null && config.communityColors) {
+            _communities = new Communities(config.communityThreshold);
+            addGraphListener(_communities);
+        }
+        return _communities;
+    }
+    
+    // The colour to draw a Node in, from the latest communities that were
+    // found. This never waits for them to be found.
+    Color getNodeColor(Node node) {
+        Communities communities = _communities;
+        if (communities != null) {
+            Color color = communities.getColor(node);
+            if (color != null) {
+                return color;
+            }
+        }
+        return config.nodeColor;
+    }
+    
+    // Returns the DeltaStream that sends changes to web clients, creating
+    // it when the first client connects.
+    synchronized DeltaStream getDeltaStream() {
+        if (_deltaStream == null) {
+            _deltaStream = new DeltaStream();
+            addGraphListener(_deltaStream);
+        }
+        return _deltaStream;
+    }
+    
+    // Replay any journal records that are newer than the last snapshot,
+    // then start recording new changes in the journal.
+    public synchronized void openJournal() throws IOException {
+        if (_journal == null) {
+            File dir = new File(config.outputDirectory, getStrippedChannel());
+            dir.mkdir();
+            Journal journal = new Journal(this, dir, getStem(), config.journalFlushInterval, config.restorePointGenerations);
+            int replayed = journal.replay();
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " journal records for " + _label);
+            }
+            journal.open();
+            addGraphListener(journal);
+            _journal = journal;
+        }
+    }
+    
+    String getCaption() {
+        return _caption;
+    }
+    
+    // The caption as drawn, followed by the most central nicks if they are
+    // shown.
+    String getDisplayCaption() {
+        if (_leaders == null) {
+            return _caption;
+        }
+        if (_caption.length() == 0) {
+            return _leaders;
+        }
+        return _caption + " - " + _leaders;
+    }
+    
+    // Describe the k nicks with the highest PageRank.
+    public synchronized String getLeaders(int k) {
+        Centrality centrality = getCentrality();
+        Node[] top = centrality.getTop(k, Centrality.PAGERANK);
+        StringBuffer leaders = new StringBuffer("Most central:");
+        for (int i = 0; i < top.length; i++) {
+            leaders.append(i == 0 ? " " : ", ").append(top[i]);
+        }
+        return leaders.toString();
+    }
+    
     public int getFrameCount() {
         return _frameCount;
     }
@@ -543,7 +931,7 @@ public class Graph implements java.io.Serializable {
         return _label;
     }
     
-    public void setCaption(String caption) {
+    public synchronized void setCaption(String caption) {
         _caption = caption;
     }
     
@@ -555,65 +943,509 @@ public class Graph implements java.io.Serializable {
         return _lastFile;
     }
     
+    // Returns the latest frame as a PNG image. If it has not been drawn,
+    // for example because only SVG is written, it is drawn now from the
+    // current layout.
+    EncodedFrame getLatestFrame() throws IOException {
+        EncodedFrame frame = _latestFrame;
+        if (frame != null && frame.number == _frameCount) {
+            return frame;
+        }
+        synchronized (this) {
+            if (_latestFrame == null || _latestFrame.number != _frameCount) {
+                calcBounds(config.outputWidth, config.outputHeight);
+                BufferedImage image = drawImage(config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+                ByteArrayOutputStream pngBytes = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", pngBytes);
+                _latestFrame = new EncodedFrame(_frameCount, pngBytes.toByteArray());
+            }
+            return _latestFrame;
+        }
+    }
+    
+    // An encoded image and the number of the frame it shows.
+    static class EncodedFrame {
+        
+        public EncodedFrame(int number, byte[] data) {
+            this.number = number;
+            this.data = data;
+        }
+        
+        public int number;
+        public byte[] data;
+        
+    }
+    
     public void makeNextImage() {
+        runWithSlot(new Runnable() {
+            public void run() {
+                makeNextImageNow();
+            }
+        });
+    }
+    
+    private synchronized void makeNextImageNow() {
+        if (_replaying) {
+            // Frames are not drawn while replaying the journal.
+            return;
+        }
         _frameCount++;
-        String strippedChannel = _label.toLowerCase().substring(1);
+        if (_drawEvery == 1 || (_drawEvery > 1 && _frameCount % _drawEvery == 0)) {
+            drawFrame();
+        }
+        
+        // Also save the graph for later retrieval. This is done in
+        // the background, so it doesn't have to happen every frame.
+        if (config.createRestorePoints) {
+            getRestorePointWriter().changed();
+        }
         
-        File dir = new File(config.outputDirectory, strippedChannel);
+        // Apply the temporal decay after each frame is created.
+        decay(_viewName == null ? config.temporalDecayAmount : _viewDecayAmount);
+        
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).frameCompleted(this);
+        }
+    }
+    
+    // Draw the current layout to a single PNG or SVG file, without laying
+    // it out again. This is used for graphs rebuilt from the history.
+    public synchronized void writeImage(File file) throws IOException {
+        calcBounds(config.outputWidth, config.outputHeight);
+        if (file.getName().toLowerCase().endsWith(".svg")) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            try {
+                new SvgRenderer(this, config).write(writer, config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+            }
+            finally {
+                writer.close();
+            }
+        }
+        else {
+            BufferedImage image = drawImage(config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+            ImageIO.write(image, "png", file);
+        }
+    }
+    
+    // Lay out the Graph and write the output files for the current frame.
+    public void drawFrame() {
+        runWithSlot(new Runnable() {
+            public void run() {
+                drawFrameNow();
+            }
+        });
+    }
+    
+    // Run some work that may draw a frame while holding the lock on this
+    // Graph. This waits for a slot in the RenderPool that is shared by every
+    // bot before taking the lock, so the lock is never held while waiting.
+    void runWithSlot(final Runnable work) {
+        RenderPool.getShared().run(config, _renderPriority, new Runnable() {
+            public void run() {
+                synchronized (Graph.this) {
+                    work.run();
+                }
+            }
+        });
+    }
+    
+    private synchronized void drawFrameNow() {
+        File dir = new File(config.outputDirectory, getStrippedChannel());
         dir.mkdir();
             
         doLayout(config.springEmbedderIterations);
         calcBounds(config.outputWidth, config.outputHeight);
+        for (int i = 0; i < getListeners().size(); i++) {
+            ((GraphListener) _listeners.get(i)).layoutCompleted(this);
+        }
+        if (config.centralityLeaders > 0) {
+            _leaders = getLeaders(config.centralityLeaders);
+        }
+        getCommunities();
             
         try {
-            BufferedImage image = drawImage(config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+            String format = config.getChannelString(_label, "OutputFormat", config.outputFormat);
+            if (!format.equals("svg")) {
+                writeRasterFrame(dir, getStem());
+            }
+            if (format.equals("svg") || format.equals("both")) {
+                writeVectorFrame(dir, getStem());
+            }
+        }
+        catch (Exception e) {
+            System.out.println("PieSpy has gone wibbly: " + e);
+            e.printStackTrace();
+        }
+    }
+    
+    // Only draw every nth frame, or none at all if n is 0. Frames are
+    // still counted and decayed when they are not drawn.
+    public synchronized void setDrawEvery(int n) {
+        _drawEvery = n;
+    }
+    
+    // Draw the current frame as an image and write it to the archive,
+    // current image and animation.
+    private void writeRasterFrame(File dir, String strippedChannel) throws IOException {
+        // Open the archive first, as it may move the frame count on.
+        FrameArchive archive = null;
+        if (config.createArchive && (config.archiveFormat.equals("container") || config.archiveFormat.equals("delta"))) {
+            archive = getFrameArchive(dir);
+        }
+        
+        // Start drawing any extra output profiles in the background.
+        String profileSpec = config.getChannelString(_label, "OutputProfiles", config.outputProfiles);
+        if (!profileSpec.equals(_profileSpec)) {
+            _profiles = OutputProfile.parse(profileSpec, config.outputWidth);
+            _profileSpec = profileSpec;
+        }
+        ArrayList profiles = _profiles;
+        ArrayList futures = new ArrayList();
+        // The profiles must not need the lock on this Graph, as it is held
+        // until they have all been drawn.
+        getLabelCache();
+        for (int i = 0; i < profiles.size(); i++) {
+            futures.add(RenderPool.getShared().submit(config, _renderPriority, new ProfileWriter((OutputProfile) profiles.get(i), dir, strippedChannel)));
+        }
+        
+        BufferedImage image = drawImage(config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+        
+        // Encode the image once, as it may be written to several places.
+        ByteArrayOutputStream pngBytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", pngBytes);
+        byte[] png = pngBytes.toByteArray();
+        _latestFrame = new EncodedFrame(_frameCount, png);
 
-            // Write the archive image.
-            File file = new File(dir, strippedChannel + "-" + _nf.format(_frameCount) + ".png");
-            if (config.createArchive) {
-                ImageIO.write(image, "png", file);
+        // Write the archive image.
+        File file = new File(dir, strippedChannel + "-" + _nf.format(_frameCount) + ".png");
+        if (config.createArchive) {
+            if (config.archiveFormat.equals("container")) {
+                archive.append(_frameCount, png, FrameArchive.TYPE_PNG);
+            }
+            else if (config.archiveFormat.equals("delta")) {
+                archiveDelta(archive, image, png);
+            }
+            else {
+                writeFile(file, png);
                 _lastFile = file;
             }
+        }
 
-            // Also save an image as channel-current.png.
-            File current = new File(dir, strippedChannel + "-current.png");
-            if (config.createCurrent) {
-                ImageIO.write(image, "png", current);
-                if (!config.createArchive) {
-                    _lastFile = file;
-                }
+        // Also save an image as channel-current.png.
+        File current = new File(dir, strippedChannel + "-current.png");
+        if (config.createCurrent) {
+            writeFile(current, png);
+            if (!config.createArchive) {
+                _lastFile = file;
+            }
+            else if (!config.archiveFormat.equals("png")) {
+                // Individual archive frames are not available as files.
+                _lastFile = current;
+            }
+        }
+        
+        // Append the frame to the rolling animation.
+        if (!config.animationFormat.equals("none")) {
+            getAnimationStream(dir).writeFrame(image);
+        }
+        
+        // Wait for the other profiles, as the layout must not change
+        // while they are being drawn.
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                RenderPool.getShared().waitFor((Future) futures.get(i));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                System.out.println("Could not draw output profile for " + _label + ": " + e.getCause());
             }
+        }
+    }
+    
+    // Draws and writes the image for an extra output profile.
+    private class ProfileWriter implements Callable {
+        
+        public ProfileWriter(OutputProfile profile, File dir, String strippedChannel) {
+            _profile = profile;
+            _dir = dir;
+            _strippedChannel = strippedChannel;
+        }
+        
+        public Object call() throws IOException {
+            int width = (int) Math.round(_profile.getWidth() / _profile.getScale());
+            int height = (int) Math.round(_profile.getHeight() / _profile.getScale());
+            Bounds bounds = getBounds(width, height);
+            BufferedImage image = drawImage(bounds, _profile.getWidth(), _profile.getHeight(), _profile.getScale(), config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+            
+            ByteArrayOutputStream pngBytes = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", pngBytes);
+            byte[] png = pngBytes.toByteArray();
             
-            // Also serialize the graph object for later retrieval.
-            if (config.createRestorePoints) {
-                writeGraph();
+            if (config.createArchive && config.archiveFormat.equals("png")) {
+                writeFile(new File(_dir, _strippedChannel + "-" + _nf.format(_frameCount) + "-" + _profile.getName() + ".png"), png);
             }
-
+            if (config.createCurrent) {
+                writeFile(new File(_dir, _strippedChannel + "-current-" + _profile.getName() + ".png"), png);
+            }
+            return null;
         }
-        catch (Exception e) {
-            System.out.println("PieSpy has gone wibbly: " + e);
-            e.printStackTrace();
+        
+        private OutputProfile _profile;
+        private File _dir;
+        private String _strippedChannel;
+    }
+    
+    // Frames are drawn with RenderPool.FRAME priority unless this is
+    // changed.
+    void setRenderPriority(int priority) {
+        _renderPriority = priority;
+    }
+    
+    // Write the current frame as an SVG document. This skips rasterisation
+    // and image encoding altogether. SVG frames are always archived as
+    // separate files, whatever the ArchiveFormat.
+    private void writeVectorFrame(File dir, String strippedChannel) throws IOException {
+        if (!config.createArchive && !config.createCurrent) {
+            return;
         }
         
-        // Apply the temporal decay after each frame is created.
-        decay(config.temporalDecayAmount);
+        String extension = config.svgCompress ? ".svgz" : ".svg";
+        File current = new File(dir, strippedChannel + "-current" + extension);
+        if (config.createArchive) {
+            File file = new File(dir, strippedChannel + "-" + _nf.format(_frameCount) + extension);
+            writeVectorFile(file);
+            _lastFile = file;
+            if (config.createCurrent) {
+                // Copy the archived file rather than drawing it again.
+                copyFile(file, current);
+            }
+        }
+        else {
+            writeVectorFile(current);
+            _lastFile = current;
+        }
     }
     
-    // Serialize this Graph and write it to a File.
-    public void writeGraph() {
+    // Stream an SVG document straight to disk. It is written to a temporary
+    // file first, so nobody can read a partly written document.
+    private void writeVectorFile(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 65536);
         try {
-            String strippedChannel = _label.toLowerCase().substring(1);
-            File dir = new File(config.outputDirectory, strippedChannel);
-            File file = new File(dir, strippedChannel + "-restore.dat");
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
-            oos.writeObject(SocialNetworkBot.VERSION);
-            oos.writeObject(this);
-            oos.flush();
-            oos.close();
+            if (config.svgCompress) {
+                out = new java.util.zip.GZIPOutputStream(out);
+            }
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            new SvgRenderer(this, config).write(writer, config.outputWidth, config.outputHeight, config.borderSize, config.nodeRadius, config.edgeThreshold, config.showEdges);
+            writer.flush();
         }
-        catch (Exception e) {
-            // Do nothing?
+        finally {
+            out.close();
+        }
+        replaceFile(temp, file);
+    }
+    
+    private static void copyFile(File source, File target) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                java.nio.channels.FileChannel channel = in.getChannel();
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, out.getChannel());
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+        replaceFile(temp, target);
+    }
+    
+    // Rename a file over the top of another. Some platforms will not rename
+    // onto an existing file, so the target is removed first.
+    private static void replaceFile(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            target.delete();
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Unable to rename " + temp + " to " + target);
+            }
+        }
+    }
+    
+    // Close any files that are kept open between frames, and write any
+    // outstanding restore point and journal records.
+    public void close() {
+        if (_restorePointWriter != null) {
+            _restorePointWriter.flush();
+        }
+        if (_journal != null) {
+            _journal.close();
+        }
+        if (_history != null) {
+            _history.close();
+        }
+        if (_store != null) {
+            _store.savePositions(this);
+            _store.close();
+        }
+        for (int i = 0; i < getViews().size(); i++) {
+            ((Graph) _views.get(i)).close();
+        }
+        try {
+            if (_frameArchive != null) {
+                _frameArchive.close();
+                _frameArchive = null;
+            }
+            if (_animationStream != null) {
+                _animationStream.close();
+                _animationStream = null;
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Could not close the output files for " + _label + ": " + e);
+        }
+    }
+    
+    // Returns the channel name without its prefix, as used for the output
+    // directory.
+    String getStrippedChannel() {
+        return _label.toLowerCase().substring(1);
+    }
+    
+    // Returns the start of the names of the output files. Views of a
+    // channel include the name of the view.
+    String getStem() {
+        if (_viewName == null) {
+            return getStrippedChannel();
+        }
+        return getStrippedChannel() + "-" + _viewName;
+    }
+    
+    String getDisplayLabel() {
+        if (_viewName == null) {
+            return _label;
         }
+        return _label + " (" + _viewName + ")";
+    }
+    
+    // Make this Graph a view of a channel that decays at its own rate.
+    synchronized void setView(String name, double decayAmount) {
+        _viewName = name;
+        _viewDecayAmount = decayAmount;
+    }
+    
+    String getViewName() {
+        return _viewName;
+    }
+    
+    // Add a view of this channel. Every change made to this Graph is
+    // copied into the view.
+    public synchronized void addView(Graph view) {
+        getViews().add(view);
+        addGraphListener(new ViewMirror(view));
+    }
+    
+    synchronized ArrayList getViews() {
+        if (_views == null) {
+            _views = new ArrayList();
+        }
+        return _views;
+    }
+    
+    // The cache is not saved in restore points, so it is created lazily.
+    // Once it exists it is read without locking this Graph, as the extra
+    // output profiles draw labels while the frame is holding the lock.
+    private LabelCache getLabelCache() {
+        LabelCache labelCache = _labelCache;
+        if (labelCache == null) {
+            labelCache = createLabelCache();
+        }
+        return labelCache;
+    }
+    
+    private synchronized LabelCache createLabelCache() {
+        if (_labelCache == null) {
+            _labelCache = new LabelCache(config.labelCacheSize);
+        }
+        return _labelCache;
+    }
+    
+    // Open the FrameArchive for this channel if it is not already open.
+    // Without restore points the frame count starts again at 1, so the
+    // frames carry on from the last one in the archive.
+    private FrameArchive getFrameArchive(File dir) throws IOException {
+        if (_frameArchive == null) {
+            _frameArchive = new FrameArchive(dir, getStem(), config.archiveSegmentSize);
+            if (_frameArchive.getLastFrame() >= _frameCount) {
+                _frameCount = _frameArchive.getLastFrame() + 1;
+            }
+        }
+        return _frameArchive;
+    }
+    
+    private AnimationStream getAnimationStream(File dir) throws IOException {
+        if (_animationStream == null) {
+            _animationStream = new AnimationStream(dir, getStem(), config.animationFormat, config.animationFrameDelay, config.animationRotateMinutes * 60000L, config.animationRotateBytes);
+        }
+        return _animationStream;
+    }
+    
+    // Store the frame as a delta against the previous frame, or as a
+    // complete PNG if it is time for a new keyframe.
+    private void archiveDelta(FrameArchive archive, BufferedImage image, byte[] png) throws IOException {
+        int[] pixels = FrameDelta.getPixels(image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean keyframe = _previousPixels == null || _previousPixels.length != pixels.length || _framesSinceKeyframe >= config.archiveKeyframeInterval - 1;
+        if (keyframe) {
+            archive.append(_frameCount, png, FrameArchive.TYPE_PNG);
+            _framesSinceKeyframe = 0;
+        }
+        else {
+            archive.append(_frameCount, FrameDelta.encode(_previousPixels, pixels, width, height), FrameArchive.TYPE_DELTA);
+            _framesSinceKeyframe++;
+        }
+        _previousPixels = pixels;
+    }
+    
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+    }
+    
+    // Write a restore point straight away. This must not be called while
+    // holding the lock on this Graph.
+    public void writeGraph() {
+        RestorePointWriter writer = getRestorePointWriter();
+        synchronized (this) {
+            writer.changed();
+        }
+        writer.flush();
+    }
+    
+    private synchronized RestorePointWriter getRestorePointWriter() {
+        if (_restorePointWriter == null) {
+            File dir = new File(config.outputDirectory, getStrippedChannel());
+            dir.mkdir();
+            File file = new File(dir, getStem() + "-restore.bin");
+            _restorePointWriter = new RestorePointWriter(this, file, config.restorePointInterval * 1000L, config.restorePointChanges, config.restorePointGenerations);
+        }
+        return _restorePointWriter;
     }
     
     private String _label;
@@ -626,13 +1458,44 @@ public class Graph implements java.io.Serializable {
     private double minY = Double.POSITIVE_INFINITY;
     private double maxY = Double.NEGATIVE_INFINITY;
     private double maxWeight = 0;
+    private transient Bounds _rawBounds = null;
+    
 
     private Configuration config;
-    private int _frameCount = 0;
+    // Read without the lock by the web server.
+    private volatile int _frameCount = 0;
     private File _lastFile = null;
     
     private ArrayList _heuristics = new ArrayList();
     
     private NumberFormat _nf;
+    private transient FrameArchive _frameArchive = null;
+    private transient int[] _previousPixels = null;
+    private transient int _framesSinceKeyframe = 0;
+    private transient AnimationStream _animationStream = null;
+    private transient String _profileSpec = null;
+    private transient ArrayList _profiles = null;
+    private transient volatile LabelCache _labelCache = null;
+    private transient RestorePointWriter _restorePointWriter = null;
+    private long _journalSequence = 0;
+    private transient Journal _journal = null;
+    private transient HistoryStore _history = null;
+    private transient ScheduledExport _exports = null;
+    private transient MappedGraphStore _store = null;
+    private transient DeltaStream _deltaStream = null;
+    private transient Centrality _centrality = null;
+    private transient TieIndex _tieIndex = null;
+    private transient volatile Communities _communities = null;
+    private transient volatile String _leaders = null;
+    private transient volatile EncodedFrame _latestFrame = null;
+    private transient String _viewName = null;
+    private transient double _viewDecayAmount = 0;
+    private transient ArrayList _views = null;
+    private transient boolean _replaying = false;
+    private transient NodeEvictor _evictor = null;
+    private transient boolean _evictorChecked = false;
+    private transient int _drawEvery = 1;
+    private transient int _renderPriority = RenderPool.FRAME;
+    private transient ArrayList _listeners = null;
     
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+/**
+ * An empty implementation of GraphListener, so that listeners only need to
+ * override the methods they are interested in.
+ */
+public class GraphAdapter implements GraphListener {
+
+    public void nodeAdded(Graph graph, Node node) {
+    }
+
+    public void nodeRemoved(Graph graph, Node node) {
+    }
+
+    public void nodeRenamed(Graph graph, Node node, String oldNick) {
+    }
+
+    public void edgeAdded(Graph graph, Edge edge, double increment) {
+    }
+
+    public void edgeRemoved(Graph graph, Edge edge) {
+    }
+
+    public void graphDecayed(Graph graph, double amount) {
+    }
+
+    public void layoutCompleted(Graph graph) {
+    }
+
+    public void frameCompleted(Graph graph) {
+    }
+
+}
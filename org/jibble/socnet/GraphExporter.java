@@ -0,0 +1,219 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes a graph in a format that other tools can read: GraphML, GEXF (for
+ * Gephi) or DOT (for Graphviz). Each nick and edge is written as soon as
+ * it is visited, so the output is never held in memory, however big the
+ * graph is.
+ * <p>
+ * Nicks are used as node ids. Each nick has its weight and the position it
+ * was last drawn at, and each edge has its weight.
+ */
+public class GraphExporter implements MappedGraphStore.Visitor {
+
+    public static final int GRAPHML = 0;
+    public static final int GEXF = 1;
+    public static final int DOT = 2;
+
+    private static final String[] NAMES = {"graphml", "gexf", "dot"};
+
+    public GraphExporter(Writer out, int format) {
+        _out = out;
+        _format = format;
+    }
+
+    // Returns the format with the given name, or -1 if it is not known.
+    public static int getFormat(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The file extension for a format, which is also its name.
+    public static String getExtension(int format) {
+        return NAMES[format];
+    }
+
+    // Write a Graph to a file. A Graph that is kept in a MappedGraphStore
+    // is read from the store.
+    public static void export(Graph graph, File file, int format) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"), 65536);
+        try {
+            GraphExporter exporter = new GraphExporter(out, format);
+            exporter.start(graph.getLabel());
+            MappedGraphStore store = graph.getStore();
+            if (store != null) {
+                store.visit(exporter);
+            }
+            else {
+                synchronized (graph) {
+                    Iterator nodeIt = graph.getNodes().iterator();
+                    while (nodeIt.hasNext()) {
+                        Node node = (Node) nodeIt.next();
+                        exporter.node(node.toString(), node.getWeight(), node.getX(), node.getY());
+                    }
+                    Iterator edgeIt = graph.getEdges().iterator();
+                    while (edgeIt.hasNext()) {
+                        Edge edge = (Edge) edgeIt.next();
+                        exporter.edge(edge.getSource().toString(), edge.getTarget().toString(), edge.getWeight());
+                    }
+                }
+            }
+            exporter.end();
+        }
+        finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    public void start(String label) throws IOException {
+        if (_format == GRAPHML) {
+            _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            _out.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+            _out.write("  <key id=\"weight\" for=\"node\" attr.name=\"weight\" attr.type=\"double\"/>\n");
+            _out.write("  <key id=\"x\" for=\"node\" attr.name=\"x\" attr.type=\"double\"/>\n");
+            _out.write("  <key id=\"y\" for=\"node\" attr.name=\"y\" attr.type=\"double\"/>\n");
+            _out.write("  <key id=\"eweight\" for=\"edge\" attr.name=\"weight\" attr.type=\"double\"/>\n");
+            _out.write("  <graph id=\"" + xml(label) + "\" edgedefault=\"undirected\">\n");
+        }
+        else if (_format == GEXF) {
+            _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            _out.write("<gexf xmlns=\"http://gexf.net/1.2\" xmlns:viz=\"http://gexf.net/1.2/viz\" version=\"1.2\">\n");
+            _out.write("  <meta>\n");
+            _out.write("    <creator>" + xml(SocialNetworkBot.VERSION) + "</creator>\n");
+            _out.write("    <description>" + xml(label) + "</description>\n");
+            _out.write("  </meta>\n");
+            _out.write("  <graph defaultedgetype=\"undirected\" mode=\"static\">\n");
+            _out.write("    <attributes class=\"node\">\n");
+            _out.write("      <attribute id=\"weight\" title=\"weight\" type=\"double\"/>\n");
+            _out.write("    </attributes>\n");
+            _out.write("    <nodes>\n");
+        }
+        else {
+            _out.write("graph " + dot(label) + " {\n");
+        }
+    }
+
+    public void node(String nick, double weight, double x, double y) throws IOException {
+        if (_format == GRAPHML) {
+            _out.write("    <node id=\"" + xml(nick) + "\"><data key=\"weight\">" + weight + "</data><data key=\"x\">" + x + "</data><data key=\"y\">" + y + "</data></node>\n");
+        }
+        else if (_format == GEXF) {
+            _out.write("      <node id=\"" + xml(nick) + "\" label=\"" + xml(nick) + "\"><attvalues><attvalue for=\"weight\" value=\"" + weight + "\"/></attvalues><viz:position x=\"" + x + "\" y=\"" + y + "\" z=\"0.0\"/></node>\n");
+        }
+        else {
+            _out.write("  " + dot(nick) + " [weight=" + weight + ", pos=\"" + x + "," + y + "\"];\n");
+        }
+    }
+
+    public void edge(String source, String target, double weight) throws IOException {
+        if (_format == GRAPHML) {
+            _out.write("    <edge source=\"" + xml(source) + "\" target=\"" + xml(target) + "\"><data key=\"eweight\">" + weight + "</data></edge>\n");
+        }
+        else if (_format == GEXF) {
+            if (_edgeCount == 0) {
+                _out.write("    </nodes>\n");
+                _out.write("    <edges>\n");
+            }
+            _out.write("      <edge id=\"" + _edgeCount + "\" source=\"" + xml(source) + "\" target=\"" + xml(target) + "\" weight=\"" + weight + "\"/>\n");
+        }
+        else {
+            _out.write("  " + dot(source) + " -- " + dot(target) + " [weight=" + weight + "];\n");
+        }
+        _edgeCount++;
+    }
+
+    public void end() throws IOException {
+        if (_format == GRAPHML) {
+            _out.write("  </graph>\n");
+            _out.write("</graphml>\n");
+        }
+        else if (_format == GEXF) {
+            if (_edgeCount == 0) {
+                _out.write("    </nodes>\n");
+                _out.write("    <edges>\n");
+            }
+            _out.write("    </edges>\n");
+            _out.write("  </graph>\n");
+            _out.write("</gexf>\n");
+        }
+        else {
+            _out.write("}\n");
+        }
+        _out.flush();
+    }
+
+    // Escape text for an XML attribute or element. Characters that XML
+    // does not allow are left out.
+    private static String xml(String text) {
+        StringBuffer buffer = new StringBuffer(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                buffer.append("&amp;");
+            }
+            else if (c == '<') {
+                buffer.append("&lt;");
+            }
+            else if (c == '>') {
+                buffer.append("&gt;");
+            }
+            else if (c == '"') {
+                buffer.append("&quot;");
+            }
+            else if (c >= 0x20 || c == '\t') {
+                buffer.append(c);
+            }
+        }
+        return buffer.toString();
+    }
+
+    // Quote an id for DOT.
+    private static String dot(String text) {
+        StringBuffer buffer = new StringBuffer(text.length() + 2);
+        buffer.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.append('\\');
+            }
+            if (c >= 0x20) {
+                buffer.append(c);
+            }
+        }
+        buffer.append('"');
+        return buffer.toString();
+    }
+
+    private Writer _out;
+    private int _format;
+    private long _edgeCount = 0;
+
+}
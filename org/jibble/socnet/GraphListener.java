@@ -0,0 +1,57 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+/**
+ * A GraphListener is told about every change made to a Graph. The methods
+ * are called while the Graph is locked, so they must be quick and must not
+ * modify the Graph.
+ */
+public interface GraphListener {
+
+    // Called whenever addNode is called. The Node may already have been
+    // in the Graph, but either way its weight has just been increased.
+    public void nodeAdded(Graph graph, Node node);
+
+    // Called after a Node has been removed by removeNode. edgeRemoved will
+    // already have been called for each of its Edges.
+    public void nodeRemoved(Graph graph, Node node);
+
+    // Called after a nick change. Any other Node that already had the new
+    // nick has been removed, with edgeRemoved called for each of its Edges,
+    // but nodeRemoved is not called for it.
+    public void nodeRenamed(Graph graph, Node node, String oldNick);
+
+    // Called when the weight of an Edge is increased, including when the
+    // Edge is new. Both of its Nodes are already in the Graph.
+    public void edgeAdded(Graph graph, Edge edge, double increment);
+
+    // Called just before an Edge is removed, by temporal decay or because
+    // one of its Nodes is being removed.
+    public void edgeRemoved(Graph graph, Edge edge);
+
+    // Called after temporal decay has been applied to every Edge and Node.
+    public void graphDecayed(Graph graph, double amount);
+
+    // Called when the Nodes have been moved by the layout, just before a
+    // frame is drawn.
+    public void layoutCompleted(Graph graph);
+
+    // Called after each frame has been laid out and drawn.
+    public void frameCompleted(Graph graph);
+
+}
@@ -0,0 +1,211 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Reads and writes restore points in a compact binary format. Unlike the
+ * old serialized restore.dat files, only the graph data is stored: the
+ * nicks, their weights and positions, the edges and any state kept by the
+ * InferenceHeuristics. The Configuration is always taken from config.ini.
+ * <p>
+ * Every file starts with a schema version. Files written by older versions
+ * of the format can always be read, with any missing data given sensible
+ * defaults, but files from newer versions are rejected.
+ * <p>
+ * Layout (all values big-endian):
+ * <pre>
+ *   int     magic "PSGS"
+ *   int     schema version
+ *   string  label
+ *   string  caption
+ *   int     frame count
+ *   long    journal sequence number (version 2 onwards)
+ *   int     node count, then for each node:
+ *             string nick, double weight, double x, double y
+ *   int     edge count, then for each edge:
+ *             int source index, int target index, double weight
+ *   int     heuristic count, then for each heuristic:
+ *             string class name, int state length, byte[] state
+ * </pre>
+ * Strings are stored as an int length followed by UTF-8 bytes.
+ */
+public class GraphSnapshot {
+
+    public static final int MAGIC = 0x50534753;  // "PSGS"
+    public static final int SCHEMA_VERSION = 2;
+
+    // Write the graph to a file.
+    public static void write(Graph graph, File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(fos.getChannel()), 65536);
+        try {
+            write(graph, out);
+            out.flush();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // Write the graph to a stream. The stream is not closed.
+    public static void write(Graph graph, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(SCHEMA_VERSION);
+        writeString(out, graph.getLabel());
+        writeString(out, graph.getCaption());
+        out.writeInt(graph.getFrameCount());
+        out.writeLong(graph.getJournalSequence());
+
+        // Nodes are numbered in the order they are written, so the
+        // edges can refer to them by index.
+        Collection nodes = graph.getNodes();
+        IdentityHashMap index = new IdentityHashMap(nodes.size() * 2);
+        out.writeInt(nodes.size());
+        Iterator nodeIt = nodes.iterator();
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            index.put(node, Integer.valueOf(index.size()));
+            writeString(out, node.toString());
+            out.writeDouble(node.getWeight());
+            out.writeDouble(node.getX());
+            out.writeDouble(node.getY());
+        }
+
+        Collection edges = graph.getEdges();
+        out.writeInt(edges.size());
+        Iterator edgeIt = edges.iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            out.writeInt(((Integer) index.get(edge.getSource())).intValue());
+            out.writeInt(((Integer) index.get(edge.getTarget())).intValue());
+            out.writeDouble(edge.getWeight());
+        }
+
+        List heuristics = graph.getHeuristics();
+        out.writeInt(heuristics.size());
+        for (int i = 0; i < heuristics.size(); i++) {
+            InferenceHeuristic heuristic = (InferenceHeuristic) heuristics.get(i);
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            heuristic.writeState(new DataOutputStream(state));
+            writeString(out, heuristic.toString());
+            out.writeInt(state.size());
+            state.writeTo(out);
+        }
+        out.flush();
+    }
+
+    // Read a graph from a file. The file is mapped into memory, as this is
+    // much faster than reading it through a stream.
+    public static Graph read(File file, Configuration config) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(in, config);
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException("Restore point is truncated: " + file);
+            }
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    static Graph read(ByteBuffer in, Configuration config) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a PieSpy restore point");
+        }
+        int version = in.getInt();
+        if (version < 1 || version > SCHEMA_VERSION) {
+            throw new IOException("Unsupported restore point version: " + version);
+        }
+
+        Graph graph = new Graph(readString(in), config);
+        graph.setCaption(readString(in));
+        graph.setFrameCount(in.getInt());
+        if (version >= 2) {
+            graph.setJournalSequence(in.getLong());
+        }
+
+        Node[] nodes = new Node[in.getInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = new Node(readString(in));
+            node.setWeight(in.getDouble());
+            node.setX(in.getDouble());
+            node.setY(in.getDouble());
+            graph.putNode(node);
+            nodes[i] = node;
+        }
+
+        int edgeCount = in.getInt();
+        for (int i = 0; i < edgeCount; i++) {
+            Edge edge = new Edge(nodes[in.getInt()], nodes[in.getInt()]);
+            edge.setWeight(in.getDouble());
+            graph.putEdge(edge);
+        }
+
+        // Heuristics that no longer exist are skipped.
+        HashMap heuristics = new HashMap();
+        Iterator heuristicIt = graph.getHeuristics().iterator();
+        while (heuristicIt.hasNext()) {
+            InferenceHeuristic heuristic = (InferenceHeuristic) heuristicIt.next();
+            heuristics.put(heuristic.toString(), heuristic);
+        }
+        int heuristicCount = in.getInt();
+        for (int i = 0; i < heuristicCount; i++) {
+            String name = readString(in);
+            byte[] state = new byte[in.getInt()];
+            in.get(state);
+            InferenceHeuristic heuristic = (InferenceHeuristic) heuristics.get(name);
+            if (heuristic != null) {
+                heuristic.readState(new DataInputStream(new ByteArrayInputStream(state)));
+            }
+        }
+
+        return graph;
+    }
+
+    // Copy the data of a Graph into a new Graph that uses the given
+    // Configuration. Graphs read from old serialized restore.dat files
+    // still refer to the Configuration they were saved with.
+    public static Graph copy(Graph graph, Configuration config) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(graph, bytes);
+        return read(ByteBuffer.wrap(bytes.toByteArray()), config);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
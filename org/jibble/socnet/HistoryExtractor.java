@@ -0,0 +1,58 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Draws a channel as it was at some time in the past, using the snapshots
+ * kept in its HistoryStore.
+ * <p>
+ * Usage: HistoryExtractor config.ini #channel "yyyy-MM-dd HH:mm" output
+ * <p>
+ * If output ends with ".svg", an SVG document is written. Otherwise it is
+ * written as a PNG image.
+ */
+public class HistoryExtractor {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: HistoryExtractor config.ini #channel \"yyyy-MM-dd HH:mm\" output");
+            return;
+        }
+
+        Properties p = new Properties();
+        p.load(new FileInputStream(args[0]));
+        Configuration config = new Configuration(p);
+
+        String strippedChannel = args[1].toLowerCase().substring(1);
+        File dir = new File(config.outputDirectory, strippedChannel);
+        long time = HistoryStore.parseTime(args[2]);
+        File output = new File(args[3]);
+
+        Graph graph = HistoryStore.read(dir, strippedChannel, time, config);
+        if (graph == null) {
+            long first = HistoryStore.getFirstTime(dir, strippedChannel);
+            System.out.println("There is no history for " + args[1] + " at that time." + (first < 0 ? "" : " The earliest is " + new Date(first) + "."));
+            return;
+        }
+        graph.writeImage(output);
+        System.out.println("Wrote " + graph + " to " + output);
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.*;
+
+/**
+ * The HistoryStore keeps a snapshot of a Graph at regular intervals, so it
+ * can be rebuilt as it was at any time in the past.
+ * <p>
+ * The compressed snapshots are appended to channel-history.dat. Each one
+ * has an entry in channel-history.idx, in time order:
+ * <pre>
+ *   long    time (milliseconds)
+ *   long    offset of the snapshot in the data file
+ *   int     compressed length
+ *   int     uncompressed length
+ * </pre>
+ * The index is mapped into memory and searched, so finding a snapshot
+ * takes the same time however long the history is.
+ */
+public class HistoryStore extends GraphAdapter {
+
+    public static final int ENTRY_SIZE = 24;
+
+    public HistoryStore(File dir, String stem, long intervalMillis) {
+        _dataFile = getDataFile(dir, stem);
+        _indexFile = getIndexFile(dir, stem);
+        _interval = intervalMillis;
+    }
+
+    public static File getDataFile(File dir, String stem) {
+        return new File(dir, stem + "-history.dat");
+    }
+
+    public static File getIndexFile(File dir, String stem) {
+        return new File(dir, stem + "-history.idx");
+    }
+
+    // Take a snapshot if the interval has passed since the last one. The
+    // Graph is locked, so only the copy is made here. It is compressed and
+    // written in the background.
+    public void frameCompleted(Graph graph) {
+        final long now = System.currentTimeMillis();
+        if (now - _lastSnapshot < _interval) {
+            return;
+        }
+        _lastSnapshot = now;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GraphSnapshot.write(graph, bytes);
+            final byte[] snapshot = bytes.toByteArray();
+            RestorePointWriter.getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        append(now, snapshot);
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not write history to " + _dataFile + ": " + e);
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            System.out.println("Could not take a history snapshot: " + e);
+        }
+    }
+
+    public synchronized void append(long time, byte[] snapshot) throws IOException {
+        if (_data == null) {
+            open();
+        }
+        // Times must never go backwards, or the index could not be searched.
+        time = Math.max(time, _lastTime);
+
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(snapshot.length / 4);
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+        out.write(snapshot);
+        out.close();
+        deflater.end();
+
+        long offset = _data.length();
+        _data.seek(offset);
+        _data.write(compressed.toByteArray());
+
+        _index.seek(_index.length());
+        _index.writeLong(time);
+        _index.writeLong(offset);
+        _index.writeInt(compressed.size());
+        _index.writeInt(snapshot.length);
+        _lastTime = time;
+    }
+
+    // Open the files for appending, discarding anything left incomplete
+    // by a crash.
+    private void open() throws IOException {
+        _data = new RandomAccessFile(_dataFile, "rw");
+        _index = new RandomAccessFile(_indexFile, "rw");
+        long entries = _index.length() / ENTRY_SIZE;
+        long dataEnd = 0;
+        while (entries > 0) {
+            _index.seek((entries - 1) * ENTRY_SIZE);
+            long time = _index.readLong();
+            long offset = _index.readLong();
+            int length = _index.readInt();
+            if (offset + length <= _data.length()) {
+                dataEnd = offset + length;
+                _lastTime = time;
+                break;
+            }
+            entries--;
+        }
+        _index.setLength(entries * ENTRY_SIZE);
+        _data.setLength(dataEnd);
+    }
+
+    public void close() {
+        try {
+            RestorePointWriter.getExecutor().submit(new Runnable() {
+                public void run() {
+                    closeFiles();
+                }
+            }).get();
+        }
+        catch (Exception e) {
+            System.out.println("Could not close " + _dataFile + ": " + e);
+        }
+    }
+
+    private synchronized void closeFiles() {
+        try {
+            if (_data != null) {
+                _data.close();
+                _index.close();
+                _data = null;
+                _index = null;
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Could not close " + _dataFile + ": " + e);
+        }
+    }
+
+    // Rebuild the Graph as it was at the given time, from the latest
+    // snapshot taken at or before that time. Returns null if there is no
+    // such snapshot.
+    public static Graph read(File dir, String stem, long time, Configuration config) throws IOException {
+        File indexFile = getIndexFile(dir, stem);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        long offset;
+        int length;
+        int rawLength;
+        FileInputStream indexStream = new FileInputStream(indexFile);
+        try {
+            FileChannel channel = indexStream.getChannel();
+            long entries = channel.size() / ENTRY_SIZE;
+            if (entries == 0) {
+                return null;
+            }
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, entries * ENTRY_SIZE);
+
+            // Find the last entry that is not after the time.
+            long low = 0;
+            long high = entries - 1;
+            long found = -1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                if (index.getLong((int) (mid * ENTRY_SIZE)) <= time) {
+                    found = mid;
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            if (found < 0) {
+                return null;
+            }
+            int position = (int) (found * ENTRY_SIZE);
+            offset = index.getLong(position + 8);
+            length = index.getInt(position + 16);
+            rawLength = index.getInt(position + 20);
+        }
+        finally {
+            indexStream.close();
+        }
+
+        FileInputStream dataStream = new FileInputStream(getDataFile(dir, stem));
+        try {
+            ByteBuffer data = dataStream.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            byte[] compressed = new byte[length];
+            data.get(compressed);
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            byte[] snapshot = new byte[rawLength];
+            try {
+                int done = 0;
+                while (done < rawLength && !inflater.finished()) {
+                    int count = inflater.inflate(snapshot, done, rawLength - done);
+                    if (count == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    done += count;
+                }
+                if (done < rawLength) {
+                    throw new EOFException("History snapshot is truncated");
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("History snapshot is corrupt: " + e.getMessage());
+            }
+            finally {
+                inflater.end();
+            }
+            return GraphSnapshot.read(ByteBuffer.wrap(snapshot), config);
+        }
+        finally {
+            dataStream.close();
+        }
+    }
+
+    // Returns the time of the oldest snapshot, or -1 if there are none.
+    public static long getFirstTime(File dir, String stem) throws IOException {
+        File indexFile = getIndexFile(dir, stem);
+        if (indexFile.length() < ENTRY_SIZE) {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            return in.readLong();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // Parse a time given as "yyyy-MM-dd HH:mm" or "yyyy-MM-dd".
+    public static long parseTime(String text) throws ParseException {
+        text = text.trim();
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm").parse(text).getTime();
+        }
+        catch (ParseException e) {
+            return new SimpleDateFormat("yyyy-MM-dd").parse(text).getTime();
+        }
+    }
+
+    private File _dataFile;
+    private File _indexFile;
+    private long _interval;
+    private long _lastSnapshot = 0;
+    private long _lastTime = 0;
+    private RandomAccessFile _data = null;
+    private RandomAccessFile _index = null;
+
+}
@@ -16,8 +16,13 @@ $Id: InferenceHeuristic.java,v 1.1 2004/05/10 10:13:53 pjm2 Exp $
 
 package org.jibble.socnet;
 
+import java.io.*;
+
 public abstract class InferenceHeuristic implements java.io.Serializable {
     
+    // Kept as in PieSpy 0.4.0 for old restore.dat files.
+    private static final long serialVersionUID = 2062504765692914814L;
+    
     public InferenceHeuristic(Graph graph, Configuration config) {
         _graph = graph;
         this.config = config;
@@ -59,6 +64,16 @@ public abstract class InferenceHeuristic implements java.io.Serializable {
     
     public abstract void infer(String nick, String message);
     
+    // Save and restore any state remembered between messages, so that it
+    // can be kept in restore points.
+    public void writeState(DataOutput out) throws IOException {
+        // No state by default.
+    }
+    
+    public void readState(DataInput in) throws IOException {
+        // No state by default.
+    }
+    
     private double _weighting;
     private Graph _graph;
     private Configuration config;
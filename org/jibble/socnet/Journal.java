@@ -0,0 +1,415 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * The Journal records every change made to a Graph, so that no changes are
+ * lost between restore points. Changes are collected in memory and written
+ * to disk in batches, with one sequential write and sync per batch.
+ * <p>
+ * When the bot starts, the latest restore point is loaded and then any
+ * newer changes in the journal are replayed on top of it.
+ * <p>
+ * The journal is split into segment files named
+ * channel-journal-FIRSTSEQUENCE.log. A new segment is started each time a
+ * restore point is taken, and only the last few segments are kept. Each
+ * record is stored as:
+ * <pre>
+ *   int     length of the body
+ *   body:   long sequence number, byte type, then the type's fields
+ *   int     CRC32 of the body
+ * </pre>
+ * A partly written record at the end of a segment is ignored.
+ */
+public class Journal extends GraphAdapter {
+
+    public static final byte NODE = 1;     // string nick
+    public static final byte EDGE = 2;     // string source, string target, double weight
+    public static final byte REMOVE = 3;   // string nick
+    public static final byte RENAME = 4;   // string old nick, string new nick
+    public static final byte DECAY = 5;    // double amount
+    public static final byte FRAME = 6;
+
+    private static ScheduledExecutorService _executor = null;
+
+    public Journal(Graph graph, File dir, String stem, long flushIntervalMillis, int keepSegments) {
+        _graph = graph;
+        _dir = dir;
+        _stem = stem;
+        _flushInterval = flushIntervalMillis;
+        _keepSegments = Math.max(1, keepSegments);
+    }
+
+    // Apply any records that are newer than the Graph. Returns the number
+    // of records that were replayed.
+    public int replay() throws IOException {
+        int replayed = 0;
+        File[] segments = getSegments();
+        _graph.setReplaying(true);
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                FileInputStream fis = new FileInputStream(segments[i]);
+                try {
+                    FileChannel channel = fis.getChannel();
+                    ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    int count = replay(in);
+                    if (count < 0) {
+                        // There is a gap in the records, so nothing after
+                        // this point can be applied.
+                        return replayed;
+                    }
+                    replayed += count;
+                }
+                finally {
+                    fis.close();
+                }
+            }
+        }
+        finally {
+            _graph.setReplaying(false);
+        }
+        return replayed;
+    }
+
+    // Replay the records from one segment. Returns -1 if a record is
+    // missing.
+    private int replay(ByteBuffer in) throws IOException {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= 4) {
+            int length = in.getInt();
+            if (length < 9 || length > in.remaining() - 4) {
+                break;
+            }
+            byte[] body = new byte[length];
+            in.get(body);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != in.getInt()) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body);
+            long sequence = record.getLong();
+            if (sequence <= _graph.getJournalSequence()) {
+                // Already in the restore point.
+                continue;
+            }
+            if (sequence != _graph.getJournalSequence() + 1) {
+                return -1;
+            }
+            apply(record.get(), record);
+            _graph.setJournalSequence(sequence);
+            count++;
+        }
+        return count;
+    }
+
+    private void apply(byte type, ByteBuffer record) throws IOException {
+        switch (type) {
+            case NODE:
+                _graph.addNode(new Node(GraphSnapshot.readString(record)));
+                break;
+            case EDGE:
+                Node source = _graph.get(new Node(GraphSnapshot.readString(record)));
+                Node target = _graph.get(new Node(GraphSnapshot.readString(record)));
+                double weight = record.getDouble();
+                if (source != null && target != null) {
+                    _graph.increaseEdge(source, target, weight);
+                }
+                break;
+            case REMOVE:
+                _graph.removeNode(new Node(GraphSnapshot.readString(record)));
+                break;
+            case RENAME:
+                Node oldNode = new Node(GraphSnapshot.readString(record));
+                // No frame is drawn while replaying, so no render slot is
+                // needed either.
+                _graph.mergeNode(oldNode, new Node(GraphSnapshot.readString(record)), false);
+                break;
+            case DECAY:
+                _graph.decay(record.getDouble());
+                break;
+            case FRAME:
+                _graph.setFrameCount(_graph.getFrameCount() + 1);
+                break;
+            default:
+                throw new IOException("Unknown journal record type: " + type);
+        }
+    }
+
+    // Start a new segment for the records that follow the replayed ones.
+    public synchronized void open() {
+        _segment = _graph.getJournalSequence() + 1;
+    }
+
+    // Start a new segment. This is called with the Graph locked, just after
+    // a restore point has been taken.
+    public synchronized void rotate() {
+        _segment = _graph.getJournalSequence() + 1;
+        _chunk = null;
+    }
+
+    // Write all outstanding records and close the journal.
+    public void close() {
+        try {
+            getExecutor().submit(new Runnable() {
+                public void run() {
+                    flush();
+                    try {
+                        if (_channel != null) {
+                            _channel.close();
+                            _channel = null;
+                        }
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not close journal for " + _graph.getLabel() + ": " + e);
+                    }
+                }
+            }).get();
+        }
+        catch (Exception e) {
+            System.out.println("Could not close journal for " + _graph.getLabel() + ": " + e);
+        }
+    }
+
+    public void nodeAdded(Graph graph, Node node) {
+        append(NODE, node.toString(), null, 0);
+    }
+
+    public void nodeRemoved(Graph graph, Node node) {
+        append(REMOVE, node.toString(), null, 0);
+    }
+
+    public void nodeRenamed(Graph graph, Node node, String oldNick) {
+        append(RENAME, oldNick, node.toString(), 0);
+    }
+
+    public void edgeAdded(Graph graph, Edge edge, double increment) {
+        append(EDGE, edge.getSource().toString(), edge.getTarget().toString(), increment);
+    }
+
+    public void graphDecayed(Graph graph, double amount) {
+        append(DECAY, null, null, amount);
+    }
+
+    public void frameCompleted(Graph graph) {
+        append(FRAME, null, null, 0);
+    }
+
+    // Add a record to the current batch. This is called with the Graph
+    // locked, so the records are in sequence order.
+    private void append(byte type, String first, String second, double value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeLong(_graph.nextJournalSequence());
+            body.writeByte(type);
+            if (first != null) {
+                GraphSnapshot.writeString(body, first);
+            }
+            if (second != null) {
+                GraphSnapshot.writeString(body, second);
+            }
+            if (type == EDGE || type == DECAY) {
+                body.writeDouble(value);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+
+            synchronized (this) {
+                if (_chunk == null) {
+                    _chunk = new Chunk(_segment);
+                    _chunks.add(_chunk);
+                }
+                DataOutputStream out = new DataOutputStream(_chunk.bytes);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+                out.writeInt((int) crc.getValue());
+                if (_pending == null) {
+                    _pending = getExecutor().schedule(new Runnable() {
+                        public void run() {
+                            flush();
+                        }
+                    }, _flushInterval, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        catch (IOException e) {
+            // Writing to memory doesn't fail.
+        }
+    }
+
+    // Write the current batch of records. This only runs on the journal
+    // thread.
+    private void flush() {
+        ArrayList chunks;
+        synchronized (this) {
+            chunks = _chunks;
+            _chunks = new ArrayList();
+            _chunk = null;
+            _pending = null;
+        }
+        if (chunks.isEmpty()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = (Chunk) chunks.get(i);
+                if (_channel == null || chunk.segment != _openSegment) {
+                    if (_channel != null) {
+                        _channel.close();
+                    }
+                    File file = getSegmentFile(chunk.segment);
+                    if (file.length() > 0) {
+                        truncateSegment(file);
+                    }
+                    _channel = new FileOutputStream(file, true).getChannel();
+                    _openSegment = chunk.segment;
+                    deleteOldSegments();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    _channel.write(buffer);
+                }
+            }
+            _channel.force(false);
+        }
+        catch (IOException e) {
+            System.out.println("Could not write journal for " + _graph.getLabel() + ": " + e);
+        }
+    }
+
+    // Cut off anything after the last complete record in a segment that is
+    // about to be appended to, so the new records can still be replayed.
+    // Records that are already on disk are never overwritten.
+    private void truncateSegment(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            ByteBuffer in = ByteBuffer.wrap(data);
+            CRC32 crc = new CRC32();
+            int end = 0;
+            while (in.remaining() >= 4) {
+                int length = in.getInt();
+                if (length < 9 || length > in.remaining() - 4) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data, in.position(), length);
+                in.position(in.position() + length);
+                if ((int) crc.getValue() != in.getInt()) {
+                    break;
+                }
+                end = in.position();
+            }
+            raf.setLength(end);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private File getSegmentFile(long firstSequence) {
+        return new File(_dir, _stem + "-journal-" + firstSequence + ".log");
+    }
+
+    // Returns the segment files in order.
+    private File[] getSegments() {
+        final String prefix = _stem + "-journal-";
+        File[] files = _dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(prefix) && name.endsWith(".log") && getFirstSequence(file) > 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator() {
+            public int compare(Object a, Object b) {
+                long diff = getFirstSequence((File) a) - getFirstSequence((File) b);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        return files;
+    }
+
+    private long getFirstSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(_stem.length() + 9, name.length() - 4));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Keep enough segments to replay from the oldest restore point.
+    private void deleteOldSegments() {
+        File[] segments = getSegments();
+        for (int i = 0; i < segments.length - _keepSegments - 1; i++) {
+            segments[i].delete();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (_executor == null) {
+            _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    // Records waiting to be written to one segment.
+    private static class Chunk {
+
+        public Chunk(long segment) {
+            this.segment = segment;
+        }
+
+        public long segment;
+        public ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    }
+
+    private Graph _graph;
+    private File _dir;
+    private String _stem;
+    private long _flushInterval;
+    private int _keepSegments;
+    private long _segment = 1;
+    private Chunk _chunk = null;
+    private ArrayList _chunks = new ArrayList();
+    private ScheduledFuture _pending = null;
+    private FileChannel _channel = null;
+    private long _openSegment = -1;
+
+}
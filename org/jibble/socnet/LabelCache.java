@@ -0,0 +1,121 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * A LabelCache holds pre-rendered images of node labels, so each nick only
+ * has to be laid out and anti-aliased once rather than in every frame.
+ * Drawing a label is then a simple copy of the cached image.
+ * <p>
+ * Each nick may have several images, one for each font, colour and scale
+ * it has been drawn with. The least recently drawn nicks are discarded
+ * when the cache is full.
+ */
+public class LabelCache {
+
+    public LabelCache(int maxNicks) {
+        _maxNicks = maxNicks;
+        _labels = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > _maxNicks;
+            }
+        };
+    }
+
+    // Draw the label with its baseline at (x, y) in the current coordinate
+    // space of g, using the current font and colour of g.
+    public void drawLabel(Graphics2D g, String nick, int x, int y) {
+        AffineTransform transform = g.getTransform();
+        if (_maxNicks <= 0 || transform.getShearX() != 0 || transform.getShearY() != 0) {
+            g.drawString(nick, x, y);
+            return;
+        }
+
+        double scale = transform.getScaleX();
+        Sprite sprite = getSprite(nick, g.getFont(), g.getColor(), scale);
+
+        // Copy the image straight onto the device pixels, so it does not
+        // get resampled.
+        Point2D origin = transform.transform(new Point2D.Double(x, y), null);
+        g.setTransform(new AffineTransform());
+        g.drawImage(sprite.image, (int) Math.round(origin.getX()) - sprite.originX, (int) Math.round(origin.getY()) - sprite.originY, null);
+        g.setTransform(transform);
+    }
+
+    // Forget all images of a nick, e.g. when it has been renamed.
+    public synchronized void invalidate(String nick) {
+        _labels.remove(nick);
+    }
+
+    public synchronized int size() {
+        return _labels.size();
+    }
+
+    private synchronized Sprite getSprite(String nick, Font font, Color color, double scale) {
+        HashMap sprites = (HashMap) _labels.get(nick);
+        if (sprites == null) {
+            sprites = new HashMap(4);
+            _labels.put(nick, sprites);
+        }
+        String style = font.getName() + "-" + font.getStyle() + "-" + font.getSize2D() + "-" + color.getRGB() + "-" + scale;
+        Sprite sprite = (Sprite) sprites.get(style);
+        if (sprite == null) {
+            sprite = new Sprite(nick, font, color, scale);
+            sprites.put(style, sprite);
+        }
+        return sprite;
+    }
+
+    // An image of a single label at one particular scale.
+    private static class Sprite {
+
+        public Sprite(String nick, Font font, Color color, double scale) {
+            Font scaledFont = font.deriveFont((float) (font.getSize2D() * scale));
+            Graphics2D scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+            FontMetrics metrics = scratch.getFontMetrics(scaledFont);
+            scratch.dispose();
+
+            // Leave a pixel spare on each side for anti-aliasing.
+            originX = 1;
+            originY = metrics.getAscent() + 1;
+            int width = Math.max(1, metrics.stringWidth(nick) + 2);
+            int height = metrics.getAscent() + metrics.getDescent() + 2;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setFont(scaledFont);
+            g.setColor(color);
+            g.drawString(nick, originX, originY);
+            g.dispose();
+        }
+
+        public BufferedImage image;
+        public int originX;
+        public int originY;
+
+    }
+
+    private int _maxNicks;
+    private LinkedHashMap _labels;
+
+}
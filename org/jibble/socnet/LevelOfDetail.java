@@ -0,0 +1,174 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+import java.awt.FontMetrics;
+import java.awt.Rectangle;
+
+/**
+ * LevelOfDetail decides which parts of a large Graph are worth drawing.
+ * Only the strongest edges are kept, up to a fixed budget, and edges that
+ * would be less than a pixel long are dropped. Only the endpoints of these
+ * edges are drawn as nodes, and labels are placed in order of node weight,
+ * skipping any that would overlap a label that has already been placed.
+ * <p>
+ * The amount of drawing is therefore bounded by the budgets rather than by
+ * the size of the Graph.
+ */
+public class LevelOfDetail {
+
+    // Size of the cells in the grid used to find overlapping labels.
+    public static final int CELL_SIZE = 64;
+
+    // width and height are the size of the drawing area inside the border.
+    public LevelOfDetail(Graph graph, Bounds bounds, int width, int height, int borderSize, int edgeBudget, double edgeThreshold) {
+        _width = width;
+        _height = height;
+        _borderSize = borderSize;
+        _minX = bounds.minX;
+        _maxX = bounds.maxX;
+        _minY = bounds.minY;
+        _maxY = bounds.maxY;
+
+        // Keep the strongest edges in a min-heap of at most edgeBudget entries.
+        PriorityQueue strongest = new PriorityQueue(Math.max(1, edgeBudget), new Comparator() {
+            public int compare(Object a, Object b) {
+                return Double.compare(((Edge) a).getWeight(), ((Edge) b).getWeight());
+            }
+        });
+        Iterator edgeIt = graph.getEdges().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            double weight = edge.getWeight();
+            if (weight < edgeThreshold) {
+                continue;
+            }
+            if (strongest.size() >= edgeBudget) {
+                if (edgeBudget <= 0 || weight <= ((Edge) strongest.peek()).getWeight()) {
+                    continue;
+                }
+            }
+            // Edges shorter than a pixel would not be visible anyway.
+            int dx = getX(edge.getSource()) - getX(edge.getTarget());
+            int dy = getY(edge.getSource()) - getY(edge.getTarget());
+            if (dx == 0 && dy == 0) {
+                continue;
+            }
+            if (strongest.size() >= edgeBudget) {
+                strongest.poll();
+            }
+            strongest.add(edge);
+        }
+
+        // Drawn weakest first, so the strongest edges end up on top.
+        _edges = new Edge[strongest.size()];
+        for (int i = 0; i < _edges.length; i++) {
+            _edges[i] = (Edge) strongest.poll();
+        }
+
+        HashSet nodes = new HashSet();
+        for (int i = 0; i < _edges.length; i++) {
+            nodes.add(_edges[i].getSource());
+            nodes.add(_edges[i].getTarget());
+        }
+        _nodes = (Node[]) nodes.toArray(new Node[nodes.size()]);
+        Arrays.sort(_nodes, new Comparator() {
+            public int compare(Object a, Object b) {
+                return Double.compare(((Node) b).getWeight(), ((Node) a).getWeight());
+            }
+        });
+    }
+
+    public Edge[] getEdges() {
+        return _edges;
+    }
+
+    // Returns the nodes to draw, heaviest first.
+    public Node[] getNodes() {
+        return _nodes;
+    }
+
+    // Returns the set of nodes whose labels can be drawn without overlapping
+    // each other, up to a maximum of labelBudget labels.
+    public HashSet getLabelledNodes(FontMetrics metrics, int nodeRadius, int labelBudget) {
+        HashSet labelled = new HashSet();
+        HashMap grid = new HashMap();
+        for (int i = 0; i < _nodes.length && labelled.size() < labelBudget; i++) {
+            Node node = _nodes[i];
+            int x = getX(node) + nodeRadius;
+            int y = getY(node) - nodeRadius;
+            Rectangle bounds = new Rectangle(x, y - metrics.getAscent(), metrics.stringWidth(node.toString()), metrics.getHeight());
+            if (place(grid, bounds)) {
+                labelled.add(node);
+            }
+        }
+        return labelled;
+    }
+
+    public int getX(Node node) {
+        return (int) (_width * (node.getX() - _minX) / (_maxX - _minX)) + _borderSize;
+    }
+
+    public int getY(Node node) {
+        return (int) (_height * (node.getY() - _minY) / (_maxY - _minY)) + _borderSize;
+    }
+
+    // Add the rectangle to the grid unless it overlaps one already there.
+    private static boolean place(HashMap grid, Rectangle bounds) {
+        int cx1 = Math.floorDiv(bounds.x, CELL_SIZE);
+        int cy1 = Math.floorDiv(bounds.y, CELL_SIZE);
+        int cx2 = Math.floorDiv(bounds.x + bounds.width, CELL_SIZE);
+        int cy2 = Math.floorDiv(bounds.y + bounds.height, CELL_SIZE);
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                ArrayList cell = (ArrayList) grid.get(Long.valueOf(((long) cx << 32) ^ (cy & 0xffffffffL)));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    if (bounds.intersects((Rectangle) cell.get(i))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                Long key = Long.valueOf(((long) cx << 32) ^ (cy & 0xffffffffL));
+                ArrayList cell = (ArrayList) grid.get(key);
+                if (cell == null) {
+                    cell = new ArrayList();
+                    grid.put(key, cell);
+                }
+                cell.add(bounds);
+            }
+        }
+        return true;
+    }
+
+    private int _width;
+    private int _height;
+    private int _borderSize;
+    private double _minX;
+    private double _maxX;
+    private double _minY;
+    private double _maxY;
+    private Edge[] _edges;
+    private Node[] _nodes;
+
+}
@@ -0,0 +1,352 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+
+/**
+ * Builds graphs from existing IRC logs without connecting to a server.
+ * Each line is passed through the bot just as if it had been seen live, so
+ * the same InferenceHeuristics and nick tracking are used.
+ * <p>
+ * Logs written by irssi, WeeChat and ZNC are understood, as well as plain
+ * "&lt;nick&gt; message" logs. The format is worked out from each line.
+ * Several channels can be replayed at once, and drawing can be limited to
+ * every nth frame, or just the final one.
+ * <pre>
+ *   java org.jibble.socnet.LogReplay [-config config.ini] [-every n]
+ *        [-threads n] #channel logfile... [#channel logfile...]
+ * </pre>
+ * The log files for each channel are read in the order they are given. A
+ * directory stands for all of the files in it, in name order.
+ */
+public class LogReplay {
+
+    public static final int IGNORE = 0;
+    public static final int MESSAGE = 1;
+    public static final int ACTION = 2;
+    public static final int NICK = 3;
+    public static final int JOIN = 4;
+
+    // Large files are mapped into memory a piece at a time.
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String configFile = "./config.ini";
+        int every = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        LinkedHashMap channels = new LinkedHashMap();
+        ArrayList files = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-config") && i + 1 < args.length) {
+                configFile = args[++i];
+            }
+            else if (args[i].equals("-every") && i + 1 < args.length) {
+                every = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].length() == 0) {
+                files = null;
+                break;
+            }
+            else if ("#&!+".indexOf(args[i].charAt(0)) >= 0) {
+                files = new ArrayList();
+                channels.put(args[i], files);
+            }
+            else if (files != null) {
+                addFiles(files, new File(args[i]));
+            }
+            else {
+                files = null;
+                break;
+            }
+        }
+        if (channels.isEmpty() || files == null) {
+            System.out.println("Usage: java org.jibble.socnet.LogReplay [-config config.ini] [-every n] [-threads n] #channel logfile... [#channel logfile...]");
+            System.exit(1);
+        }
+
+        Properties p = new Properties();
+        p.load(new FileInputStream(configFile));
+        final Configuration config = new Configuration(p);
+        final int drawEvery = every;
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList results = new ArrayList();
+        Iterator channelIt = channels.entrySet().iterator();
+        while (channelIt.hasNext()) {
+            Map.Entry entry = (Map.Entry) channelIt.next();
+            final String channel = (String) entry.getKey();
+            final ArrayList channelFiles = (ArrayList) entry.getValue();
+            results.add(executor.submit(new Callable() {
+                public Object call() throws IOException {
+                    return Long.valueOf(replay(config, channel, channelFiles, drawEvery));
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long lines = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                lines += ((Long) ((Future) results.get(i)).get()).longValue();
+            }
+            catch (ExecutionException e) {
+                System.out.println("Replay failed: " + e.getCause());
+            }
+        }
+        long time = System.currentTimeMillis() - startTime;
+        System.out.println("Replayed " + lines + " lines in " + time + " ms");
+    }
+
+    // Replay the logs of one channel and draw the final frame. Returns the
+    // number of lines read.
+    public static long replay(Configuration config, String channel, java.util.List files, int drawEvery) throws IOException {
+        // Each channel has its own bot, so nick changes seen in one log
+        // are not applied to the others.
+        SocialNetworkBot bot = new SocialNetworkBot(config);
+        Graph graph = bot.getOrCreateGraph(channel);
+        graph.setDrawEvery(drawEvery);
+
+        Charset charset;
+        try {
+            charset = Charset.forName(config.encoding);
+        }
+        catch (Exception e) {
+            charset = Charset.defaultCharset();
+        }
+
+        long lines = 0;
+        for (int i = 0; i < files.size(); i++) {
+            File file = (File) files.get(i);
+            lines += replay(bot, channel, file, charset);
+            System.out.println(channel + ": read " + file);
+        }
+
+        graph.drawFrame();
+        bot.closeGraphs();
+        System.out.println(channel + ": " + lines + " lines, " + graph.getFrameCount() + " frames, " + graph);
+        return lines;
+    }
+
+    // Read a log file through memory mapped windows, handing each line to
+    // the bot.
+    private static long replay(SocialNetworkBot bot, String channel, File file, Charset charset) throws IOException {
+        long lines = 0;
+        byte[] bytes = new byte[512];
+        String[] fields = new String[2];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = fis.getChannel();
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(WINDOW_SIZE, size - position);
+                boolean last = position + length >= size;
+                MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int limit = buffer.limit();
+                int start = 0;
+                for (int i = 0; i <= limit; i++) {
+                    int end;
+                    if (i < limit && buffer.get(i) == '\n') {
+                        end = i;
+                    }
+                    else if (i == limit && (last || start == 0)) {
+                        // The end of the file, or a line bigger than a
+                        // whole window.
+                        end = i;
+                    }
+                    else {
+                        continue;
+                    }
+                    int lineLength = end - start;
+                    if (lineLength > 0 && buffer.get(end - 1) == '\r') {
+                        lineLength--;
+                    }
+                    if (lineLength > 0) {
+                        if (lineLength > bytes.length) {
+                            bytes = new byte[lineLength * 2];
+                        }
+                        buffer.position(start);
+                        buffer.get(bytes, 0, lineLength);
+                        handle(bot, channel, new String(bytes, 0, lineLength, charset), fields);
+                        lines++;
+                    }
+                    start = end + 1;
+                }
+                position += Math.min(start, limit);
+            }
+        }
+        finally {
+            fis.close();
+        }
+        return lines;
+    }
+
+    private static void handle(SocialNetworkBot bot, String channel, String line, String[] fields) {
+        switch (parse(line, fields)) {
+            case MESSAGE:
+            case ACTION:
+                bot.onMessage(channel, fields[0], null, null, fields[1]);
+                break;
+            case NICK:
+                bot.onNickChange(fields[0], null, null, fields[1]);
+                break;
+            case JOIN:
+                bot.onJoin(channel, fields[0], null, null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Work out what a log line means. For messages and actions, fields is
+    // filled with the nick and text. For nick changes, it is the old and
+    // new nick. For joins, it is just the nick.
+    public static int parse(String line, String[] fields) {
+        int tab = line.indexOf('\t');
+        if (tab >= 0) {
+            // WeeChat: date, prefix and text separated by tabs.
+            int tab2 = line.indexOf('\t', tab + 1);
+            if (tab2 < 0) {
+                return IGNORE;
+            }
+            String prefix = line.substring(tab + 1, tab2).trim();
+            String text = line.substring(tab2 + 1);
+            if (prefix.equals("*")) {
+                return parseAction(text, fields);
+            }
+            if (prefix.equals("--") || prefix.equals("-->")) {
+                return parseEvent(text, fields);
+            }
+            if (prefix.length() == 0 || "-<=".indexOf(prefix.charAt(0)) >= 0) {
+                return IGNORE;
+            }
+            return message(stripModes(prefix), text, fields);
+        }
+
+        line = stripTimestamp(line.trim());
+        if (line.startsWith("<")) {
+            int end = line.indexOf('>');
+            if (end < 0) {
+                return IGNORE;
+            }
+            String text = line.substring(end + 1);
+            if (text.startsWith(" ")) {
+                text = text.substring(1);
+            }
+            return message(stripModes(line.substring(1, end)), text, fields);
+        }
+        if (line.startsWith("-!- ") || line.startsWith("*** ")) {
+            return parseEvent(line.substring(4), fields);
+        }
+        if (line.startsWith("* ")) {
+            return parseAction(line.substring(2), fields);
+        }
+        return IGNORE;
+    }
+
+    private static int message(String nick, String text, String[] fields) {
+        if (nick.length() == 0) {
+            return IGNORE;
+        }
+        fields[0] = nick;
+        fields[1] = text;
+        return MESSAGE;
+    }
+
+    private static int parseAction(String text, String[] fields) {
+        text = text.trim();
+        int space = text.indexOf(' ');
+        if (space < 0) {
+            return IGNORE;
+        }
+        fields[0] = stripModes(text.substring(0, space));
+        fields[1] = text.substring(space + 1);
+        return ACTION;
+    }
+
+    // Nick changes and joins.
+    private static int parseEvent(String text, String[] fields) {
+        int known = text.indexOf(" is now known as ");
+        if (known > 0) {
+            fields[0] = stripModes(text.substring(0, known).trim());
+            fields[1] = stripModes(text.substring(known + 17).trim());
+            return fields[0].length() > 0 && fields[1].length() > 0 ? NICK : IGNORE;
+        }
+        if (text.startsWith("Joins: ")) {
+            text = text.substring(7);
+        }
+        else if (text.indexOf(" has joined ") < 0) {
+            return IGNORE;
+        }
+        text = text.trim();
+        int space = text.indexOf(' ');
+        fields[0] = space < 0 ? text : text.substring(0, space);
+        return fields[0].length() > 0 ? JOIN : IGNORE;
+    }
+
+    // Remove a leading timestamp such as "12:34", "[12:34:56]" or
+    // "2004-05-10 12:34:56".
+    private static String stripTimestamp(String line) {
+        if (line.startsWith("[")) {
+            int end = line.indexOf("] ");
+            return end < 0 ? line : line.substring(end + 2).trim();
+        }
+        while (line.length() > 0 && Character.isDigit(line.charAt(0))) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                return "";
+            }
+            line = line.substring(space + 1).trim();
+        }
+        return line;
+    }
+
+    // Remove channel mode prefixes, as in "<@nick>" or "< nick>".
+    private static String stripModes(String nick) {
+        int i = 0;
+        while (i < nick.length() && "@+%~&! ".indexOf(nick.charAt(i)) >= 0) {
+            i++;
+        }
+        return nick.substring(i).trim();
+    }
+
+    private static void addFiles(ArrayList files, File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].isFile()) {
+                    files.add(children[i]);
+                }
+            }
+        }
+        else {
+            files.add(file);
+        }
+    }
+
+}
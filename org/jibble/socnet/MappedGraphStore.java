@@ -0,0 +1,554 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Keeps a copy of a Graph in memory mapped files instead of as Java
+ * objects, so that very large graphs don't slow down the garbage collector,
+ * and can be loaded again without being deserialized.
+ * <p>
+ * Each nick is given a number. The weight and position of each numbered
+ * nick is stored in channel-store-nodes.map, and the edges are stored in an
+ * open addressed hash table in channel-store-edges.map, keyed by the pair
+ * of numbers. Only the nicks themselves are kept on the heap, along with a
+ * log of the numbers given to them in channel-store-nicks.dat.
+ * <p>
+ * The files are updated as the Graph changes. Changes are written by the
+ * operating system, so they survive the bot being killed, but not the
+ * machine crashing.
+ * <p>
+ * Layout of the node file (all values big-endian):
+ * <pre>
+ *   int     magic "PSNS"
+ *   int     version
+ *   int     frame count
+ *   int     unused
+ *   then for each nick number, from 1:
+ *     double  weight, double x, double y
+ * </pre>
+ * Layout of the edge file:
+ * <pre>
+ *   int     magic "PSES"
+ *   int     version
+ *   int     capacity (a power of two)
+ *   int     unused
+ *   long    number of edges
+ *   long    number of deleted slots
+ *   then for each slot:
+ *     long    key (0 = empty, -1 = deleted), double weight
+ * </pre>
+ */
+public class MappedGraphStore extends GraphAdapter {
+
+    public static final int NODE_MAGIC = 0x50534e53;  // "PSNS"
+    public static final int EDGE_MAGIC = 0x50534553;  // "PSES"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int NODE_SIZE = 24;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    // A MappedByteBuffer can't be bigger than 2GB.
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    /**
+     * Receives the nicks and edges of a store, one at a time.
+     */
+    public interface Visitor {
+        public void node(String nick, double weight, double x, double y) throws IOException;
+        public void edge(String source, String target, double weight) throws IOException;
+    }
+
+    public MappedGraphStore(File dir, String stem) throws IOException {
+        _nickFile = new File(dir, stem + "-store-nicks.dat");
+        _nodeFile = new File(dir, stem + "-store-nodes.map");
+        _edgeFile = new File(dir, stem + "-store-edges.map");
+        readNicks();
+        openNodes();
+        openEdges();
+    }
+
+    public synchronized int getNodeCount() {
+        return _ids.size();
+    }
+
+    public synchronized long getEdgeCount() {
+        return _edges.getLong(16);
+    }
+
+    public synchronized int getFrameCount() {
+        return _nodes.getInt(8);
+    }
+
+    // Fill an empty Graph with the contents of the store.
+    public synchronized void load(final Graph graph) throws IOException {
+        final HashMap nodes = new HashMap(_ids.size() * 4 / 3 + 1);
+        visit(new Visitor() {
+            public void node(String nick, double weight, double x, double y) {
+                Node node = new Node(nick);
+                node.setWeight(weight);
+                node.setX(x);
+                node.setY(y);
+                graph.putNode(node);
+                nodes.put(nick, node);
+            }
+            public void edge(String source, String target, double weight) {
+                Edge edge = new Edge((Node) nodes.get(source), (Node) nodes.get(target));
+                edge.setWeight(weight);
+                graph.putEdge(edge);
+            }
+        });
+        graph.setFrameCount(getFrameCount());
+    }
+
+    // Replace the contents of the store with a copy of the Graph.
+    public synchronized void copy(Graph graph) throws IOException {
+        _nicks.clear();
+        _nicks.add(null);
+        _ids.clear();
+        _free.clear();
+        _nickLog.close();
+        _nickLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_nickFile)));
+        for (int position = HEADER_SIZE; position < _edges.capacity(); position += 8) {
+            _edges.putLong(position, 0);
+        }
+        _edges.putLong(16, 0);
+        _edges.putLong(24, 0);
+
+        Iterator nodeIt = graph.getNodes().iterator();
+        while (nodeIt.hasNext()) {
+            nodeAdded(graph, (Node) nodeIt.next());
+        }
+        Iterator edgeIt = graph.getEdges().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            edgeAdded(graph, edge, edge.getWeight());
+        }
+        _nodes.putInt(8, graph.getFrameCount());
+    }
+
+    // Pass every nick, then every edge, to the Visitor.
+    public synchronized void visit(Visitor visitor) throws IOException {
+        for (int id = 1; id < _nicks.size(); id++) {
+            String nick = (String) _nicks.get(id);
+            if (nick != null) {
+                int position = HEADER_SIZE + id * NODE_SIZE;
+                visitor.node(nick, _nodes.getDouble(position), _nodes.getDouble(position + 8), _nodes.getDouble(position + 16));
+            }
+        }
+        for (int slot = 0; slot < _capacity; slot++) {
+            long key = _edges.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            if (key != EMPTY && key != DELETED) {
+                String source = (String) _nicks.get((int) (key >>> 32));
+                String target = (String) _nicks.get((int) key);
+                visitor.edge(source, target, _edges.getDouble(HEADER_SIZE + slot * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        int id = getId(node, true);
+        _nodes.putDouble(HEADER_SIZE + id * NODE_SIZE, node.getWeight());
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        Integer id = (Integer) _ids.remove(node.getLowerCaseNick());
+        if (id != null) {
+            _nicks.set(id.intValue(), null);
+            _free.add(id);
+            logNick(id.intValue(), "");
+        }
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        // The Graph has already removed any Node with the new nick.
+        Integer id = (Integer) _ids.remove(oldNick.toLowerCase());
+        if (id == null) {
+            nodeAdded(graph, node);
+            return;
+        }
+        Integer replaced = (Integer) _ids.remove(node.getLowerCaseNick());
+        if (replaced != null && !replaced.equals(id)) {
+            _nicks.set(replaced.intValue(), null);
+            _free.add(replaced);
+            logNick(replaced.intValue(), "");
+        }
+        _ids.put(node.getLowerCaseNick(), id);
+        _nicks.set(id.intValue(), node.toString());
+        logNick(id.intValue(), node.toString());
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        long key = getKey(getId(edge.getSource(), true), getId(edge.getTarget(), true));
+        if ((getEdgeCount() + getDeleted() + 1) * 4 > (long) _capacity * 3) {
+            grow();
+        }
+        int position = find(key, true);
+        _edges.putDouble(position + 8, _edges.getDouble(position + 8) + increment);
+    }
+
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        int source = getId(edge.getSource(), false);
+        int target = getId(edge.getTarget(), false);
+        if (source > 0 && target > 0) {
+            int position = find(getKey(source, target), false);
+            if (position >= 0) {
+                delete(position);
+            }
+        }
+    }
+
+    // Edges that the Graph removed have already been deleted. The rest
+    // lose the same amount of weight, as do the nicks.
+    public synchronized void graphDecayed(Graph graph, double amount) {
+        for (int slot = 0; slot < _capacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long key = _edges.getLong(position);
+            if (key != EMPTY && key != DELETED) {
+                double weight = _edges.getDouble(position + 8) - amount;
+                if (weight <= 0) {
+                    delete(position);
+                }
+                else {
+                    _edges.putDouble(position + 8, weight);
+                }
+            }
+        }
+        for (int id = 1; id < _nicks.size(); id++) {
+            if (_nicks.get(id) != null) {
+                int position = HEADER_SIZE + id * NODE_SIZE;
+                _nodes.putDouble(position, Math.max(0, _nodes.getDouble(position) - amount));
+            }
+        }
+    }
+
+    public synchronized void frameCompleted(Graph graph) {
+        _nodes.putInt(8, graph.getFrameCount());
+    }
+
+    public void layoutCompleted(Graph graph) {
+        savePositions(graph);
+    }
+
+    // Save the positions of the nicks. This is only worth doing after the
+    // layout has been done.
+    public synchronized void savePositions(Graph graph) {
+        Iterator nodeIt = graph.getNodes().iterator();
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            int id = getId(node, false);
+            if (id > 0) {
+                int position = HEADER_SIZE + id * NODE_SIZE;
+                _nodes.putDouble(position + 8, node.getX());
+                _nodes.putDouble(position + 16, node.getY());
+            }
+        }
+    }
+
+    // Write everything to disk and close the files.
+    public synchronized void close() {
+        try {
+            _nodes.force();
+            _edges.force();
+            if (_nickLog != null) {
+                _nickLog.close();
+                _nickLog = null;
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Could not close " + _nickFile + ": " + e);
+        }
+    }
+
+    // Returns the number given to a Node's nick. If create is false, 0 is
+    // returned for unknown nicks.
+    private int getId(Node node, boolean create) {
+        Integer id = (Integer) _ids.get(node.getLowerCaseNick());
+        if (id != null) {
+            return id.intValue();
+        }
+        if (!create) {
+            return 0;
+        }
+        if (_free.isEmpty()) {
+            id = Integer.valueOf(_nicks.size());
+            _nicks.add(node.toString());
+            growNodes(id.intValue());
+        }
+        else {
+            id = (Integer) _free.remove(_free.size() - 1);
+            _nicks.set(id.intValue(), node.toString());
+        }
+        _ids.put(node.getLowerCaseNick(), id);
+        int position = HEADER_SIZE + id.intValue() * NODE_SIZE;
+        _nodes.putDouble(position, node.getWeight());
+        _nodes.putDouble(position + 8, node.getX());
+        _nodes.putDouble(position + 16, node.getY());
+        logNick(id.intValue(), node.toString());
+        return id.intValue();
+    }
+
+    // Edges are undirected, so the smaller number always comes first.
+    private static long getKey(int a, int b) {
+        if (a > b) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    // Returns the position of the slot holding the key. If the key is not
+    // in the table, it is added if add is true, otherwise -1 is returned.
+    private int find(long key, boolean add) {
+        int mask = _capacity - 1;
+        int slot = hash(key) & mask;
+        int firstDeleted = -1;
+        while (true) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long found = _edges.getLong(position);
+            if (found == key) {
+                return position;
+            }
+            if (found == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = position;
+                }
+            }
+            else if (found == EMPTY) {
+                if (!add) {
+                    return -1;
+                }
+                if (firstDeleted >= 0) {
+                    position = firstDeleted;
+                    _edges.putLong(24, getDeleted() - 1);
+                }
+                _edges.putLong(position, key);
+                _edges.putDouble(position + 8, 0);
+                _edges.putLong(16, getEdgeCount() + 1);
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void delete(int position) {
+        _edges.putLong(position, DELETED);
+        _edges.putDouble(position + 8, 0);
+        _edges.putLong(16, getEdgeCount() - 1);
+        _edges.putLong(24, getDeleted() + 1);
+    }
+
+    private long getDeleted() {
+        return _edges.getLong(24);
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    // Copy the edges into a new table, twice the size unless most of the
+    // slots are only deleted ones.
+    private void grow() {
+        int capacity = _capacity;
+        if (getEdgeCount() * 2 > capacity) {
+            if (capacity >= MAX_CAPACITY) {
+                throw new IllegalStateException("Too many edges in " + _edgeFile);
+            }
+            capacity *= 2;
+        }
+        try {
+            File tmp = new File(_edgeFile.getPath() + ".tmp");
+            tmp.delete();
+            MappedByteBuffer old = _edges;
+            int oldCapacity = _capacity;
+            _edges = map(tmp, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            _edges.putInt(0, EDGE_MAGIC);
+            _edges.putInt(4, VERSION);
+            _edges.putInt(8, capacity);
+            _capacity = capacity;
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                int position = HEADER_SIZE + slot * SLOT_SIZE;
+                long key = old.getLong(position);
+                if (key != EMPTY && key != DELETED) {
+                    _edges.putDouble(find(key, true) + 8, old.getDouble(position + 8));
+                }
+            }
+            _edges.force();
+            if (!tmp.renameTo(_edgeFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not grow " + _edgeFile + ": " + e);
+        }
+    }
+
+    // Make sure there is room for the given nick number.
+    private void growNodes(int id) {
+        int needed = HEADER_SIZE + (id + 1) * NODE_SIZE;
+        if (needed <= _nodes.capacity()) {
+            return;
+        }
+        try {
+            _nodes.force();
+            _nodes = map(_nodeFile, Math.max(needed, (long) _nodes.capacity() * 2));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not grow " + _nodeFile + ": " + e);
+        }
+    }
+
+    private void openNodes() throws IOException {
+        boolean exists = _nodeFile.length() >= HEADER_SIZE;
+        long size = Math.max(_nodeFile.length(), HEADER_SIZE + (long) MIN_CAPACITY * NODE_SIZE);
+        _nodes = map(_nodeFile, Math.max(size, HEADER_SIZE + (long) _nicks.size() * NODE_SIZE));
+        if (!exists) {
+            _nodes.putInt(0, NODE_MAGIC);
+            _nodes.putInt(4, VERSION);
+        }
+        else if (_nodes.getInt(0) != NODE_MAGIC || _nodes.getInt(4) > VERSION) {
+            throw new IOException(_nodeFile + " is not a node store that can be read");
+        }
+    }
+
+    private void openEdges() throws IOException {
+        if (_edgeFile.length() >= HEADER_SIZE) {
+            _edges = map(_edgeFile, _edgeFile.length());
+            if (_edges.getInt(0) != EDGE_MAGIC || _edges.getInt(4) > VERSION) {
+                throw new IOException(_edgeFile + " is not an edge store that can be read");
+            }
+            _capacity = _edges.getInt(8);
+        }
+        else {
+            _capacity = MIN_CAPACITY;
+            _edges = map(_edgeFile, HEADER_SIZE + (long) _capacity * SLOT_SIZE);
+            _edges.putInt(0, EDGE_MAGIC);
+            _edges.putInt(4, VERSION);
+            _edges.putInt(8, _capacity);
+        }
+    }
+
+    // Map a whole file, making it bigger if needed. The mapping stays
+    // valid after the channel is closed.
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    // Rebuild the nick numbers from the log. Each record gives the nick
+    // for a number, or an empty string if the number is no longer used.
+    private void readNicks() throws IOException {
+        _nicks.add(null);
+        int records = 0;
+        if (_nickFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_nickFile)));
+            try {
+                while (true) {
+                    int id = in.readInt();
+                    String nick = in.readUTF();
+                    while (_nicks.size() <= id) {
+                        _nicks.add(null);
+                    }
+                    _nicks.set(id, nick.length() == 0 ? null : nick);
+                    records++;
+                }
+            }
+            catch (EOFException e) {
+                // A partly written record at the end is ignored.
+            }
+            finally {
+                in.close();
+            }
+        }
+        for (int id = 1; id < _nicks.size(); id++) {
+            String nick = (String) _nicks.get(id);
+            if (nick == null) {
+                _free.add(Integer.valueOf(id));
+            }
+            else {
+                _ids.put(nick.toLowerCase(), Integer.valueOf(id));
+            }
+        }
+
+        // Renames and removals make the log grow, so it is rewritten when
+        // most of it is out of date.
+        if (records > _ids.size() * 2 + 1024) {
+            File tmp = new File(_nickFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                for (int id = 1; id < _nicks.size(); id++) {
+                    if (_nicks.get(id) != null) {
+                        out.writeInt(id);
+                        out.writeUTF((String) _nicks.get(id));
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+            if (!tmp.renameTo(_nickFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        }
+        _nickLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_nickFile.getPath(), true)));
+    }
+
+    private void logNick(int id, String nick) {
+        try {
+            _nickLog.writeInt(id);
+            _nickLog.writeUTF(nick);
+            _nickLog.flush();
+        }
+        catch (IOException e) {
+            System.out.println("Could not write to " + _nickFile + ": " + e);
+        }
+    }
+
+    private File _nickFile;
+    private File _nodeFile;
+    private File _edgeFile;
+    private DataOutputStream _nickLog = null;
+
+    // ArrayList of nicks, indexed by number. Unused numbers are null.
+    private ArrayList _nicks = new ArrayList();
+
+    // HashMap of lower case nick -> Integer number.
+    private HashMap _ids = new HashMap();
+
+    // Numbers that can be given to new nicks.
+    private ArrayList _free = new ArrayList();
+
+    private MappedByteBuffer _nodes;
+    private MappedByteBuffer _edges;
+    private int _capacity;
+
+}
@@ -0,0 +1,225 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds one Graph of the whole IRC network from the changes made to each
+ * channel's Graph. A nick that talks in several channels is one Node, and
+ * the weights that two nicks gain in each channel are added together.
+ * <p>
+ * The network Graph can be large and slow to lay out, so the changes are
+ * only collected while the channels are being updated. Repeated changes
+ * to the same nick or Edge are added up, and they are merged into the
+ * network Graph in the background after each channel frame, along with
+ * everything else that has built up since the last merge. The network
+ * Graph then draws its own frame and applies its own decay.
+ */
+public class NetworkAggregate extends GraphAdapter {
+
+    public NetworkAggregate(Graph network) {
+        _network = network;
+        // Channel frames go first when the CPU is busy.
+        _network.setRenderPriority(RenderPool.BACKGROUND);
+    }
+
+    public Graph getGraph() {
+        return _network;
+    }
+
+    // Remove a nick from the network, such as when it is ignored.
+    public synchronized void removeNick(String nick) {
+        drain();
+        _ops.add(new Op(Op.REMOVE, nick, null, 0));
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        Op op = (Op) _nodes.get(node.getLowerCaseNick());
+        if (op == null) {
+            op = new Op(Op.NODE, node.toString(), null, 0);
+            _nodes.put(node.getLowerCaseNick(), op);
+        }
+        op.amount++;
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        // Each channel the nick is in reports the change. Only the first
+        // has any effect on the network.
+        drain();
+        _ops.add(new Op(Op.RENAME, oldNick, node.toString(), 0));
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        String source = edge.getSource().getLowerCaseNick();
+        String target = edge.getTarget().getLowerCaseNick();
+        String key = source.compareTo(target) < 0 ? source + " " + target : target + " " + source;
+        Op op = (Op) _edges.get(key);
+        if (op == null) {
+            op = new Op(Op.EDGE, edge.getSource().toString(), edge.getTarget().toString(), 0);
+            _edges.put(key, op);
+        }
+        op.amount += increment;
+    }
+
+    // Merge the changes into the network in the background, unless a
+    // merge is already waiting to start.
+    public synchronized void frameCompleted(Graph graph) {
+        if (_scheduled || (_ops.isEmpty() && _nodes.isEmpty() && _edges.isEmpty())) {
+            return;
+        }
+        _scheduled = true;
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    merge(true);
+                }
+                catch (RuntimeException e) {
+                    System.out.println("Could not update the network graph: " + e);
+                }
+            }
+        });
+    }
+
+    // Merge any outstanding changes into the network straight away,
+    // without drawing a frame.
+    public void flush() {
+        merge(false);
+    }
+
+    private void merge(boolean drawFrame) {
+        ArrayList ops;
+        synchronized (this) {
+            drain();
+            ops = _ops;
+            _ops = new ArrayList();
+            _scheduled = false;
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+        final ArrayList changes = ops;
+        if (drawFrame) {
+            // The render slot must be taken before the lock on the network.
+            _network.runWithSlot(new Runnable() {
+                public void run() {
+                    apply(changes);
+                    _network.makeNextImage();
+                }
+            });
+        }
+        else {
+            synchronized (_network) {
+                apply(changes);
+            }
+        }
+    }
+
+    // Apply the changes to the network. This is called with the network
+    // locked.
+    private void apply(ArrayList ops) {
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = (Op) ops.get(i);
+            if (op.type == Op.NODE) {
+                Node node = new Node(op.a);
+                for (int j = 0; j < op.amount; j++) {
+                    _network.addNode(node);
+                }
+            }
+            else if (op.type == Op.EDGE) {
+                Node source = new Node(op.a);
+                Node target = new Node(op.b);
+                // Nicks trimmed from the network come back with their
+                // next Edge.
+                if (!_network.contains(source)) {
+                    _network.addNode(source);
+                }
+                if (!_network.contains(target)) {
+                    _network.addNode(target);
+                }
+                _network.increaseEdge(_network.get(source), _network.get(target), op.amount);
+            }
+            else if (op.type == Op.RENAME) {
+                _network.mergeNode(new Node(op.a), new Node(op.b), false);
+            }
+            else {
+                _network.removeNode(new Node(op.a));
+            }
+        }
+    }
+
+    // Move the added up nick and Edge weights onto the list of changes,
+    // before a change that must be made in order.
+    private void drain() {
+        _ops.addAll(_nodes.values());
+        _nodes.clear();
+        _ops.addAll(_edges.values());
+        _edges.clear();
+    }
+
+    // A change waiting to be merged into the network.
+    private static class Op {
+
+        public static final int NODE = 0;
+        public static final int EDGE = 1;
+        public static final int RENAME = 2;
+        public static final int REMOVE = 3;
+
+        public Op(int type, String a, String b, double amount) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.amount = amount;
+        }
+
+        public int type;
+        public String a;
+        public String b;
+        public double amount;
+
+    }
+
+    // Merges are made on their own thread, as the network may take much
+    // longer to lay out than any channel.
+    private static synchronized ExecutorService getExecutor() {
+        if (_executor == null) {
+            _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy network");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    private static ExecutorService _executor = null;
+
+    private Graph _network;
+    private boolean _scheduled = false;
+
+    // The changes waiting to be merged, in order.
+    private ArrayList _ops = new ArrayList();
+
+    // Nick and Edge weights added up since the last change that had to be
+    // kept in order, keyed by lower case nick and by both lower case nicks.
+    private LinkedHashMap _nodes = new LinkedHashMap();
+    private LinkedHashMap _edges = new LinkedHashMap();
+
+}
@@ -0,0 +1,101 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * The NickIndex remembers which Graphs each nick is in, so that nick
+ * changes and ignores only need to visit the Graphs that are affected. It
+ * is kept up to date by listening to every channel's Graph.
+ * <p>
+ * Nicks are compared in lower case, just like Nodes.
+ */
+public class NickIndex extends GraphAdapter {
+
+    // Start keeping track of a Graph, including the Nodes already in it.
+    // The Graph is locked first, as it is when the listener methods are
+    // called.
+    public void add(Graph graph) {
+        synchronized (graph) {
+            synchronized (this) {
+                Iterator nodeIt = graph.getNodes().iterator();
+                while (nodeIt.hasNext()) {
+                    Node node = (Node) nodeIt.next();
+                    put(node.getLowerCaseNick(), graph);
+                }
+            }
+            graph.addGraphListener(this);
+        }
+    }
+
+    // Returns the Graphs that contain the nick. The array is a copy, so the
+    // Graphs can be changed while it is used.
+    public synchronized Graph[] getGraphs(String nick) {
+        ArrayList graphs = (ArrayList) _index.get(nick.toLowerCase());
+        if (graphs == null) {
+            return NO_GRAPHS;
+        }
+        return (Graph[]) graphs.toArray(new Graph[graphs.size()]);
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        put(node.getLowerCaseNick(), graph);
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        remove(node.getLowerCaseNick(), graph);
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        remove(oldNick.toLowerCase(), graph);
+        put(node.getLowerCaseNick(), graph);
+    }
+
+    private void put(String nick, Graph graph) {
+        ArrayList graphs = (ArrayList) _index.get(nick);
+        if (graphs == null) {
+            // Most nicks are only in one or two channels.
+            graphs = new ArrayList(2);
+            _index.put(nick, graphs);
+        }
+        else if (graphs.contains(graph)) {
+            return;
+        }
+        graphs.add(graph);
+    }
+
+    private void remove(String nick, Graph graph) {
+        ArrayList graphs = (ArrayList) _index.get(nick);
+        if (graphs != null) {
+            graphs.remove(graph);
+            if (graphs.isEmpty()) {
+                _index.remove(nick);
+            }
+        }
+    }
+
+    private static final Graph[] NO_GRAPHS = new Graph[0];
+
+    // HashMap of lower case nick -> ArrayList of Graphs.
+    private HashMap _index = new HashMap();
+
+}
@@ -18,6 +18,9 @@ package org.jibble.socnet;
 
 public class Node implements java.io.Serializable {
     
+    // Kept as in PieSpy 0.4.0 for old restore.dat files.
+    private static final long serialVersionUID = 3890698310576844556L;
+    
     public Node(String nick) {
         setNick(nick);
         _weight = 0;
@@ -83,6 +86,11 @@ public class Node implements java.io.Serializable {
         return _lowerCaseNick.hashCode();
     }
     
+    // The nick in lower case, as used to compare Nodes.
+    String getLowerCaseNick() {
+        return _lowerCaseNick;
+    }
+    
     public void setNick(String nick) {
         _nick = nick;
         _lowerCaseNick = _nick.toLowerCase();
@@ -0,0 +1,214 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * The NodeEvictor chooses which Nodes to remove when a Graph has more than
+ * MaxNodes, so that nicks which are no longer seen don't stay in memory
+ * forever.
+ * <p>
+ * With the "lru" policy, the Node that has been inactive for the longest
+ * is removed. With the "weight" policy, the Node with the lowest weight
+ * out of those with no Edges is removed, or the least recently active Node
+ * if every Node has Edges.
+ * <p>
+ * The order is kept up to date as the Graph changes, so choosing a Node
+ * never needs to look through the whole Graph.
+ */
+public class NodeEvictor extends GraphAdapter {
+
+    public static final int LRU = 0;
+    public static final int WEIGHT = 1;
+
+    public NodeEvictor(Graph graph, int maxNodes, int policy) {
+        _maxNodes = maxNodes;
+        _policy = policy;
+
+        // Start with the Nodes already in the Graph, lightest first.
+        ArrayList nodes = new ArrayList(graph.getNodes());
+        Collections.sort(nodes, new Comparator() {
+            public int compare(Object a, Object b) {
+                double diff = ((Node) a).getWeight() - ((Node) b).getWeight();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < nodes.size(); i++) {
+            touch((Node) nodes.get(i));
+        }
+        Iterator edgeIt = graph.getEdges().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            connect(edge.getSource(), 1, false);
+            connect(edge.getTarget(), 1, false);
+        }
+    }
+
+    // Parse the name of an eviction policy.
+    public static int getPolicy(String name) {
+        if (name.equalsIgnoreCase("weight")) {
+            return WEIGHT;
+        }
+        return LRU;
+    }
+
+    public int getMaxNodes() {
+        return _maxNodes;
+    }
+
+    // Returns the Node that should be removed next, or null if there are
+    // no Nodes.
+    public synchronized Node next() {
+        if (_policy == WEIGHT && !_isolated.isEmpty()) {
+            return ((Entry) _isolated.first()).node;
+        }
+        Iterator entryIt = _entries.values().iterator();
+        if (entryIt.hasNext()) {
+            return ((Entry) entryIt.next()).node;
+        }
+        return null;
+    }
+
+    public synchronized void nodeAdded(Graph graph, Node node) {
+        touch(node);
+    }
+
+    public synchronized void nodeRemoved(Graph graph, Node node) {
+        Entry entry = (Entry) _entries.remove(node.getLowerCaseNick());
+        if (entry != null) {
+            _isolated.remove(entry);
+        }
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        // Any Node that already had the new nick has been removed, so the
+        // renamed Node keeps its Edges.
+        Entry entry = (Entry) _entries.remove(oldNick.toLowerCase());
+        Entry replaced = (Entry) _entries.remove(node.getLowerCaseNick());
+        if (replaced != null) {
+            _isolated.remove(replaced);
+        }
+        if (entry == null) {
+            touch(node);
+            return;
+        }
+        _isolated.remove(entry);
+        entry.node = node;
+        entry.nick = node.getLowerCaseNick();
+        _entries.put(entry.nick, entry);
+        update(entry, true);
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        // A new Edge starts with a weight of just the increment.
+        int degree = edge.getWeight() == increment ? 1 : 0;
+        connect(edge.getSource(), degree, true);
+        connect(edge.getTarget(), degree, true);
+    }
+
+    // Edges are removed by decay, which doesn't make the Nodes active.
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        connect(edge.getSource(), -1, false);
+        connect(edge.getTarget(), -1, false);
+    }
+
+    // Mark a Node as the most recently active.
+    private void touch(Node node) {
+        Entry entry = (Entry) _entries.remove(node.getLowerCaseNick());
+        if (entry == null) {
+            entry = new Entry(node);
+        }
+        else {
+            _isolated.remove(entry);
+        }
+        _entries.put(entry.nick, entry);
+        update(entry, true);
+    }
+
+    // Change the number of Edges a Node has.
+    private void connect(Node node, int change, boolean active) {
+        Entry entry;
+        if (active) {
+            entry = (Entry) _entries.remove(node.getLowerCaseNick());
+            if (entry != null) {
+                _entries.put(entry.nick, entry);
+            }
+        }
+        else {
+            entry = (Entry) _entries.get(node.getLowerCaseNick());
+        }
+        if (entry == null) {
+            return;
+        }
+        _isolated.remove(entry);
+        entry.degree += change;
+        update(entry, active);
+    }
+
+    // Refresh an Entry that is not in the isolated set.
+    private void update(Entry entry, boolean active) {
+        entry.weight = entry.node.getWeight();
+        if (active) {
+            entry.time = ++_time;
+        }
+        if (entry.degree <= 0) {
+            _isolated.add(entry);
+        }
+    }
+
+    // What is known about each Node. The weight and time are copied here so
+    // that the isolated set stays in order while the Node changes.
+    private static class Entry {
+
+        public Entry(Node node) {
+            this.node = node;
+            this.nick = node.getLowerCaseNick();
+        }
+
+        public Node node;
+        public String nick;
+        public double weight;
+        public long time;
+        public int degree = 0;
+
+    }
+
+    // Lightest first, then least recently active.
+    private static final Comparator ENTRY_ORDER = new Comparator() {
+        public int compare(Object a, Object b) {
+            Entry ea = (Entry) a;
+            Entry eb = (Entry) b;
+            if (ea.weight != eb.weight) {
+                return ea.weight < eb.weight ? -1 : 1;
+            }
+            return ea.time < eb.time ? -1 : (ea.time > eb.time ? 1 : 0);
+        }
+    };
+
+    private int _maxNodes;
+    private int _policy;
+    private long _time = 0;
+
+    // LinkedHashMap of lower case nick -> Entry, least recently active
+    // first. Active Entries are moved to the end.
+    private LinkedHashMap _entries = new LinkedHashMap();
+
+    // Entries for Nodes with no Edges, in ENTRY_ORDER.
+    private TreeSet _isolated = new TreeSet(ENTRY_ORDER);
+
+}
@@ -0,0 +1,102 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * An OutputProfile describes an extra image to draw for each frame, such as
+ * a thumbnail or a high resolution image. These are all drawn from the same
+ * layout as the normal output.
+ * <p>
+ * Profiles are written as name:WIDTHxHEIGHT or name:WIDTHxHEIGHT@SCALE and
+ * separated by commas, e.g. "thumb:200x150,retina:1600x1200". The scale
+ * controls the size of the text, nodes and borders. If it is not given,
+ * the image is scaled relative to OutputWidth, so each profile looks like
+ * the normal output at a different size.
+ */
+public class OutputProfile {
+
+    public OutputProfile(String name, int width, int height, double scale) {
+        _name = name;
+        _width = width;
+        _height = height;
+        _scale = scale;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public double getScale() {
+        return _scale;
+    }
+
+    public String toString() {
+        return _name + ":" + _width + "x" + _height + "@" + _scale;
+    }
+
+    // Parse a comma separated list of profiles. Badly formed entries are
+    // reported and skipped.
+    public static ArrayList parse(String value, int outputWidth) {
+        ArrayList profiles = new ArrayList();
+        if (value == null) {
+            return profiles;
+        }
+        StringTokenizer tokenizer = new StringTokenizer(value, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            if (token.length() == 0) {
+                continue;
+            }
+            try {
+                int colon = token.indexOf(':');
+                int x = token.indexOf('x', colon);
+                int at = token.indexOf('@', x);
+                String name = token.substring(0, colon).trim();
+                int width = Integer.parseInt(token.substring(colon + 1, x).trim());
+                int height = Integer.parseInt(token.substring(x + 1, at < 0 ? token.length() : at).trim());
+                double scale = (double) width / outputWidth;
+                if (at >= 0) {
+                    scale = Double.parseDouble(token.substring(at + 1).trim());
+                }
+                if (name.length() == 0 || width <= 0 || height <= 0 || scale <= 0) {
+                    throw new IllegalArgumentException();
+                }
+                profiles.add(new OutputProfile(name, width, height, scale));
+            }
+            catch (RuntimeException e) {
+                System.out.println("Ignoring badly formed output profile: " + token);
+            }
+        }
+        return profiles;
+    }
+
+    private String _name;
+    private int _width;
+    private int _height;
+    private double _scale;
+
+}
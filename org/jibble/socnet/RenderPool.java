@@ -0,0 +1,233 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Shares the CPU between the bots running in one JVM. Laying out, drawing
+ * and encoding a frame is only started when one of the pool's slots is
+ * free, and there is one slot for each processor.
+ * <p>
+ * When a slot comes free it goes to the waiting work with the highest
+ * priority. Between work of the same priority, it goes to the owner (one
+ * for each bot) that was given a slot the longest time ago, so a busy
+ * network can't hold up a quiet one. Each owner's work is started in the
+ * order it was asked for.
+ * <p>
+ * Work may be run by the thread that asks for it, or handed to the pool's
+ * own threads, where it waits for a slot of its own. A thread that asks for
+ * a slot must not hold any lock that work with a slot might need, so a
+ * Graph's slot is always taken before its lock. A thread with a slot that
+ * waits for handed over work with waitFor runs the work itself if it has
+ * not been given a slot yet, so it never waits for a slot either.
+ */
+public class RenderPool {
+
+    // Frames of channel graphs.
+    public static final int FRAME = 1;
+
+    // Work that can wait, such as the network graph.
+    public static final int BACKGROUND = 0;
+
+    public RenderPool(int slots) {
+        _free = Math.max(1, slots);
+        _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PieSpy renderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // The pool shared by every bot in this JVM.
+    public static synchronized RenderPool getShared() {
+        if (_shared == null) {
+            _shared = new RenderPool(Runtime.getRuntime().availableProcessors());
+        }
+        return _shared;
+    }
+
+    // Run some work in this thread once it has been given a slot.
+    public void run(Object owner, int priority, Runnable work) {
+        if (_holding.get() != null) {
+            work.run();
+            return;
+        }
+        acquire(owner, priority, nextSequence(), null);
+        runHolding(owner, priority, work);
+    }
+
+    // Run some work in this thread, which has just been given a slot.
+    private void runHolding(Object owner, int priority, Runnable work) {
+        _holding.set(new Request(owner, priority, 0, null));
+        try {
+            work.run();
+        }
+        finally {
+            _holding.set(null);
+            release();
+        }
+    }
+
+    // Run some work on one of the pool's threads once it has been given a
+    // slot.
+    public Future submit(final Object owner, final int priority, Callable work) {
+        final Task task = new Task(work);
+        // The place in the queue is taken now, as the pool's threads may
+        // start in any order.
+        final long sequence = nextSequence();
+        _executor.execute(new Runnable() {
+            public void run() {
+                // No slot is given if waitFor has already started the task.
+                if (acquire(owner, priority, sequence, task)) {
+                    runHolding(owner, priority, task);
+                }
+            }
+        });
+        return task;
+    }
+
+    // Wait for work that was submitted to the pool. If this thread has a
+    // slot and the work has not started yet, it is run here instead.
+    public Object waitFor(Future future) throws InterruptedException, ExecutionException {
+        if (_holding.get() != null && future instanceof Task) {
+            ((Task) future).run();
+        }
+        return future.get();
+    }
+
+    // Returns the number of jobs waiting for a slot.
+    public synchronized int getWaiting() {
+        return _waiting.size();
+    }
+
+    // Wait for a slot. If the request is for a task, this gives up and
+    // returns false when another thread starts the task.
+    private synchronized boolean acquire(Object owner, int priority, long sequence, Task task) {
+        Request request = new Request(owner, priority, sequence, task);
+        _waiting.add(request);
+        boolean interrupted = false;
+        while (_free == 0 || choose() != request) {
+            if (task != null && task.started) {
+                _waiting.remove(request);
+                return false;
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        _waiting.remove(request);
+        _free--;
+        _lastGranted.put(owner, Long.valueOf(++_grants));
+        // Another slot may still be free for the next request.
+        notifyAll();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    private synchronized long nextSequence() {
+        return ++_sequence;
+    }
+
+    private synchronized void release() {
+        _free++;
+        notifyAll();
+    }
+
+    // The request that should be given the next free slot.
+    private Request choose() {
+        Request best = null;
+        long bestGranted = 0;
+        for (int i = 0; i < _waiting.size(); i++) {
+            Request request = (Request) _waiting.get(i);
+            if (request.task != null && request.task.started) {
+                continue;
+            }
+            Long granted = (Long) _lastGranted.get(request.owner);
+            long lastGranted = granted == null ? 0 : granted.longValue();
+            if (best == null || request.priority > best.priority
+                    || (request.priority == best.priority && (lastGranted < bestGranted
+                    || (lastGranted == bestGranted && request.sequence < best.sequence)))) {
+                best = request;
+                bestGranted = lastGranted;
+            }
+        }
+        return best;
+    }
+
+    private static class Request {
+
+        public Request(Object owner, int priority, long sequence, Task task) {
+            this.owner = owner;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        public Object owner;
+        public int priority;
+        public long sequence;
+        public Task task;
+
+    }
+
+    // Work handed to the pool's threads. It may be run by whichever thread
+    // gets to it first, and only runs once.
+    private class Task extends FutureTask {
+
+        public Task(Callable work) {
+            super(work);
+        }
+
+        public void run() {
+            started = true;
+            // Wake the thread waiting for a slot for this task, if any.
+            synchronized (RenderPool.this) {
+                RenderPool.this.notifyAll();
+            }
+            super.run();
+        }
+
+        public volatile boolean started = false;
+
+    }
+
+    private static RenderPool _shared = null;
+
+    private ExecutorService _executor;
+    private int _free;
+    private long _sequence = 0;
+    private long _grants = 0;
+
+    // The owner and priority of the slot the current thread has, if any.
+    private ThreadLocal _holding = new ThreadLocal();
+
+    // ArrayList of waiting Requests, oldest first.
+    private ArrayList _waiting = new ArrayList();
+
+    // WeakHashMap of owner -> Long, counting when it was last given a slot.
+    private WeakHashMap _lastGranted = new WeakHashMap();
+
+}
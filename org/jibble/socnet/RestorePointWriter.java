@@ -0,0 +1,171 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes restore points for a Graph in the background. A restore point is
+ * written at most once every interval, or sooner if the Graph has changed
+ * a given number of times, so the cost does not grow with the amount of
+ * chatter in the channel.
+ * <p>
+ * Each restore point is written to a temporary file and then renamed over
+ * the old one, so a crash can never leave a half written restore point.
+ * The previous few restore points are kept as file.1, file.2 and so on.
+ */
+public class RestorePointWriter {
+
+    private static ScheduledExecutorService _executor = null;
+
+    public RestorePointWriter(Graph graph, File file, long intervalMillis, int changeThreshold, int generations) {
+        _graph = graph;
+        _file = file;
+        _interval = intervalMillis;
+        _changeThreshold = changeThreshold;
+        _generations = Math.max(1, generations);
+    }
+
+    // Returns the file holding an older generation of a restore point,
+    // where generation 0 is the latest.
+    public static File getGeneration(File file, int generation) {
+        if (generation == 0) {
+            return file;
+        }
+        return new File(file.getPath() + "." + generation);
+    }
+
+    // Called each time the Graph changes. This must be called while
+    // holding the lock on the Graph.
+    public synchronized void changed() {
+        _changes++;
+        boolean urgent = _changeThreshold > 0 && _changes >= _changeThreshold;
+        if (_pending != null) {
+            if (!urgent || !_pending.cancel(false)) {
+                // Already scheduled, or already being written.
+                return;
+            }
+        }
+        long delay = urgent ? 0 : Math.max(0, _lastWrite + _interval - System.currentTimeMillis());
+        _pending = getExecutor().schedule(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Write any outstanding changes straight away.
+    public void flush() {
+        Future pending;
+        synchronized (this) {
+            pending = _pending;
+        }
+        if (pending == null || pending.cancel(false)) {
+            write();
+        }
+        else {
+            // The background write has already started.
+            try {
+                pending.get();
+            }
+            catch (Exception e) {
+                // It will have reported its own errors.
+            }
+        }
+    }
+
+    // Only one write happens at a time, so a flush can't race with the
+    // background write over the temporary file.
+    private void write() {
+        synchronized (_writeLock) {
+            byte[] data;
+            synchronized (_graph) {
+                synchronized (this) {
+                    _pending = null;
+                    if (_changes == 0) {
+                        return;
+                    }
+                    _changes = 0;
+                    _lastWrite = System.currentTimeMillis();
+                }
+                // Only copying the Graph needs the lock. The slow part of
+                // writing it to disk can happen while the bot carries on.
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    GraphSnapshot.write(_graph, bytes);
+                    data = bytes.toByteArray();
+                    _graph.snapshotTaken();
+                }
+                catch (IOException e) {
+                    System.out.println("Could not create a restore point for " + _graph.getLabel() + ": " + e);
+                    return;
+                }
+            }
+
+            File temp = new File(_file.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(data);
+                    out.getFD().sync();
+                }
+                finally {
+                    out.close();
+                }
+                for (int i = _generations - 1; i > 0; i--) {
+                    File older = getGeneration(_file, i - 1);
+                    if (older.exists()) {
+                        Files.move(older.toPath(), getGeneration(_file, i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                System.out.println("Could not write restore point " + _file + ": " + e);
+                temp.delete();
+            }
+        }
+    }
+
+    static synchronized ScheduledExecutorService getExecutor() {
+        if (_executor == null) {
+            // One thread for all graphs keeps the disk activity steady. It is
+            // also used to write the history and to add buffered joins.
+            _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy restore points");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    private Graph _graph;
+    private File _file;
+    private long _interval;
+    private int _changeThreshold;
+    private int _generations;
+    private int _changes = 0;
+    private long _lastWrite = 0;
+    private ScheduledFuture _pending = null;
+    private Object _writeLock = new Object();
+
+}
@@ -0,0 +1,80 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Exports a Graph every ExportInterval minutes, in each of the formats
+ * listed in ExportFormats. The files are written in the background and
+ * replaced each time, so they always hold a complete graph.
+ */
+public class ScheduledExport extends GraphAdapter {
+
+    public ScheduledExport(File dir, String stem, String formats, long intervalMillis) {
+        _dir = dir;
+        _stem = stem;
+        _interval = intervalMillis;
+        StringTokenizer tokenizer = new StringTokenizer(formats, ", ");
+        while (tokenizer.hasMoreTokens()) {
+            String name = tokenizer.nextToken();
+            int format = GraphExporter.getFormat(name);
+            if (format < 0) {
+                System.out.println("Unknown export format: " + name);
+            }
+            else {
+                _formats.add(Integer.valueOf(format));
+            }
+        }
+    }
+
+    public static File getFile(File dir, String stem, int format) {
+        return new File(dir, stem + "." + GraphExporter.getExtension(format));
+    }
+
+    public void frameCompleted(final Graph graph) {
+        long now = System.currentTimeMillis();
+        if (_formats.isEmpty() || now - _lastExport < _interval) {
+            return;
+        }
+        _lastExport = now;
+        RestorePointWriter.getExecutor().execute(new Runnable() {
+            public void run() {
+                for (int i = 0; i < _formats.size(); i++) {
+                    int format = ((Integer) _formats.get(i)).intValue();
+                    File file = getFile(_dir, _stem, format);
+                    try {
+                        GraphExporter.export(graph, file, format);
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not export to " + file + ": " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    private File _dir;
+    private String _stem;
+    private long _interval;
+    private long _lastExport = 0;
+
+    // ArrayList of Integer formats.
+    private ArrayList _formats = new ArrayList();
+
+}
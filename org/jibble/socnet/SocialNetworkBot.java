@@ -21,6 +21,8 @@ import org.jibble.pircbot.*;
 import java.util.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
 
 /**
  * SocialNetworkBot extends PircBot to connect to IRC. It maintains a
@@ -30,6 +32,9 @@ public class SocialNetworkBot extends PircBot {
 
     public static final String VERSION = "PieSpy 0.4.0";
 
+    // Longest time, in milliseconds, that a join is buffered for.
+    private static final long JOIN_FLUSH_DELAY = 1000;
+
     public SocialNetworkBot(Configuration config) throws IOException {
         this.config = config;
         
@@ -38,11 +43,19 @@ public class SocialNetworkBot extends PircBot {
             throw new IOException("Output directory (" + config.outputDirectory + ") does not exist.");
         }
         
+        // Make sure archives and animations are completed when we exit.
+        addToShutdownHook(this);
+        
+        if (config.networkGraph.length() > 1) {
+            createNetwork(config.networkGraph);
+        }
     }
 
     // Overriden from PircBot.    
     public void onMessage(String channel, String sender, String login, String hostname, String message) {
         
+        flushJoins();
+        
         if (config.ignoreSet.contains(sender.toLowerCase())) {
             return;
         }
@@ -57,6 +70,8 @@ public class SocialNetworkBot extends PircBot {
     
     // Overriden from PircBot. Private messages can control the bot.
     protected void onPrivateMessage(String sender, String login, String hostname, String message) {
+        flushJoins();
+        
         // Only allow access if the correct password has been supplied.
         if (!message.startsWith(config.password)) {
         //    disabled for twitter
@@ -74,6 +89,17 @@ public class SocialNetworkBot extends PircBot {
                 String key = (String) keyIt.next();
                 Graph graph = (Graph) _graphs.get(key);
                 sendMessage(sender, key + ": " + graph.toString());
+                sendMessage(sender, key + " most central: " + describeLeaders(graph, 5));
+                ArrayList views = graph.getViews();
+                for (int i = 0; i < views.size(); i++) {
+                    Graph view = (Graph) views.get(i);
+                    sendMessage(sender, key + " (" + view.getViewName() + "): " + view.toString());
+                }
+            }
+            Graph network = getNetworkGraph();
+            if (network != null) {
+                sendMessage(sender, network.getLabel() + ": " + network.toString());
+                sendMessage(sender, network.getLabel() + " most central: " + describeLeaders(network, 5));
             }
         }
         else if (messageLc.startsWith("raw ")) {
@@ -94,9 +120,12 @@ public class SocialNetworkBot extends PircBot {
             // Add a user to the IgnoreSet and remove them from all Graphs.
             String nick = message.substring(7);
             config.ignoreSet.add(nick.toLowerCase());
-            Iterator graphIt = _graphs.values().iterator();
-            while (graphIt.hasNext()) {
-                Graph g = (Graph) graphIt.next();
+            if (_network != null) {
+                _network.removeNick(nick);
+            }
+            Graph[] graphs = _nickIndex.getGraphs(nick);
+            for (int i = 0; i < graphs.length; i++) {
+                Graph g = graphs[i];
                 boolean changed = g.removeNode(new Node(nick));
                 if (changed) {
                     g.makeNextImage();
@@ -109,7 +138,7 @@ public class SocialNetworkBot extends PircBot {
             if (tokenizer.countTokens() >= 1) {
                 String channel = tokenizer.nextToken();
 
-                Graph graph = (Graph) _graphs.get(channel.toLowerCase());
+                Graph graph = getGraph(channel);
                 if (graph != null) {
                     try {
                         File file = (File) graph.getLastFile();
@@ -133,6 +162,95 @@ public class SocialNetworkBot extends PircBot {
                 sendMessage(sender, "Example of correct use is \"draw <#channel>\"");
             }
         }
+        else if (messageLc.startsWith("history ")) {
+            // DCC SEND an image of a channel as it was at some time.
+            String args = message.substring(8).trim();
+            int space = args.indexOf(' ');
+            if (space > 0) {
+                String channel = args.substring(0, space);
+                String strippedChannel = channel.toLowerCase().substring(1);
+                File dir = new File(config.outputDirectory, strippedChannel);
+                try {
+                    long time = HistoryStore.parseTime(args.substring(space + 1));
+                    Graph graph = HistoryStore.read(dir, strippedChannel, time, config);
+                    if (graph != null) {
+                        File file = new File(dir, strippedChannel + "-history-" + new SimpleDateFormat("yyyyMMdd-HHmm").format(new Date(time)) + ".png");
+                        graph.writeImage(file);
+                        sendMessage(sender, "Trying to send \"" + file.getName() + "\"... If you have difficultly in recieving this file via DCC, there may be a firewall between us.");
+                        dccSendFile(file, sender, 120000);
+                    }
+                    else {
+                        sendMessage(sender, "Sorry, I don't have any history for " + channel + " from that far back.");
+                    }
+                }
+                catch (Exception e) {
+                    sendMessage(sender, "Sorry, mate: " + e.toString());
+                }
+            }
+            else {
+                sendMessage(sender, "Example of correct use is \"history <#channel> <yyyy-MM-dd HH:mm>\"");
+            }
+        }
+        else if (messageLc.startsWith("ties ")) {
+            // Tell the user who a nick talks to most in each channel.
+            String nick = message.substring(5).trim();
+            Graph[] graphs = _nickIndex.getGraphs(nick);
+            boolean found = false;
+            for (int i = 0; i < graphs.length; i++) {
+                Graph graph = graphs[i];
+                StringBuffer ties = new StringBuffer();
+                synchronized (graph) {
+                    Edge[] edges = graph.getTieIndex().getStrongest(nick, 5);
+                    for (int j = 0; j < edges.length; j++) {
+                        Node other = edges[j].getSource().toString().equalsIgnoreCase(nick) ? edges[j].getTarget() : edges[j].getSource();
+                        if (j > 0) {
+                            ties.append(", ");
+                        }
+                        ties.append(other).append(" (").append(Math.round(edges[j].getWeight() * 10) / 10.0).append(')');
+                    }
+                }
+                if (ties.length() == 0) {
+                    continue;
+                }
+                sendMessage(sender, graph.getLabel() + ": " + ties);
+                found = true;
+            }
+            if (!found) {
+                sendMessage(sender, "Sorry, I haven't seen " + nick + " talking to anyone.");
+            }
+        }
+        else if (messageLc.startsWith("export ")) {
+            // DCC SEND the graph of a channel in a format for other tools.
+            StringTokenizer tokenizer = new StringTokenizer(message.substring(7));
+            if (tokenizer.countTokens() >= 1) {
+                String channel = tokenizer.nextToken();
+                String formatName = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "graphml";
+                int format = GraphExporter.getFormat(formatName);
+                Graph graph = getGraph(channel);
+                if (format < 0) {
+                    sendMessage(sender, "Sorry, I can only export graphml, gexf or dot.");
+                }
+                else if (graph != null) {
+                    try {
+                        File dir = new File(config.outputDirectory, graph.getStrippedChannel());
+                        dir.mkdir();
+                        File file = ScheduledExport.getFile(dir, graph.getStem(), format);
+                        GraphExporter.export(graph, file, format);
+                        sendMessage(sender, "Trying to send \"" + file.getName() + "\"... If you have difficultly in recieving this file via DCC, there may be a firewall between us.");
+                        dccSendFile(file, sender, 120000);
+                    }
+                    catch (Exception e) {
+                        sendMessage(sender, "Sorry, mate: " + e.toString());
+                    }
+                }
+                else {
+                    sendMessage(sender, "Sorry, I don't know much about that channel yet.");
+                }
+            }
+            else {
+                sendMessage(sender, "Example of correct use is \"export <#channel> [graphml|gexf|dot]\"");
+            }
+        }
         else {
             sendMessage(sender, "Sorry, I don't support that command yet.");
         }
@@ -148,7 +266,7 @@ public class SocialNetworkBot extends PircBot {
     // Overridden from PircBot.    
     protected void onJoin(String channel, String sender, String login, String hostname) {
 
-        add(channel, sender);
+        bufferJoin(channel, sender);
         
         if (sender.equalsIgnoreCase(getNick())) {
             // Remember that we're meant to be in this channel
@@ -158,13 +276,16 @@ public class SocialNetworkBot extends PircBot {
     
     // Overridden from PircBot.
     protected void onUserList(String channel, User[] users) {
+        ArrayList nicks = new ArrayList(users.length);
         for (int i = 0; i < users.length; i++) {
-            add(channel, users[i].getNick());
+            nicks.add(users[i].getNick());
         }
+        addAll(channel, nicks);
     }
     
     // Overridden from PircBot.
     protected void onKick(String channel, String kickerNick, String kickerLogin, String kickerHostname, String recipientNick, String reason) {
+        flushJoins();
         add(channel, kickerNick);
         add(channel, recipientNick);
         
@@ -176,11 +297,13 @@ public class SocialNetworkBot extends PircBot {
     
     // Overridden from PircBot.
     protected void onMode(String channel, String sourceNick, String sourceLogin, String sourceHostname, String mode) {
+        flushJoins();
         add(channel, sourceNick);
     }
     
     // Overridden from PircBot.
     protected void onNickChange(String oldNick, String login, String hostname, String newNick) {
+        flushJoins();
         changeNick(oldNick, newNick);
     }
     
@@ -213,68 +336,343 @@ public class SocialNetworkBot extends PircBot {
             return;
         }
 
-        Node node = new Node(nick);
-        String key = channel.toLowerCase();
-        
-        // Create the Graph for this channel if it doesn't already exist.
-        Graph graph = (Graph) _graphs.get(key);
+        // Add the Node to the Graph.
+        getOrCreateGraph(channel).addNode(new Node(nick));
+    }
+    
+    // Add many nicks to a channel's Graph at once.
+    private void addAll(String channel, Collection nicks) {
+        ArrayList added = new ArrayList(nicks.size());
+        Iterator nickIt = nicks.iterator();
+        while (nickIt.hasNext()) {
+            String nick = (String) nickIt.next();
+            if (!config.ignoreSet.contains(nick.toLowerCase())) {
+                added.add(nick);
+            }
+        }
+        if (!added.isEmpty()) {
+            getOrCreateGraph(channel).addNodes(added);
+        }
+    }
+    
+    // Joins often arrive in large bursts, such as when a netsplit ends, so
+    // they are collected and added to each Graph in one go. Pending joins
+    // are added before any other event is handled, so the order of events
+    // is kept, and at most JOIN_FLUSH_DELAY after the first of them
+    // arrived, so they still appear if the channel goes quiet.
+    private void bufferJoin(String channel, String nick) {
+        if (config.joinBufferSize <= 1) {
+            add(channel, nick);
+            return;
+        }
+        synchronized (_pendingJoins) {
+            ArrayList nicks = (ArrayList) _pendingJoins.get(channel);
+            if (nicks == null) {
+                nicks = new ArrayList();
+                _pendingJoins.put(channel, nicks);
+            }
+            nicks.add(nick);
+            if (_pendingJoinCount == 0) {
+                RestorePointWriter.getExecutor().schedule(new Runnable() {
+                    public void run() {
+                        flushJoins();
+                    }
+                }, JOIN_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            }
+            _pendingJoinCount++;
+            if (_pendingJoinCount >= config.joinBufferSize) {
+                flushJoins();
+            }
+        }
+    }
+    
+    // Add all pending joins to their Graphs.
+    void flushJoins() {
+        synchronized (_pendingJoins) {
+            if (_pendingJoinCount == 0) {
+                return;
+            }
+            Iterator entryIt = _pendingJoins.entrySet().iterator();
+            while (entryIt.hasNext()) {
+                Map.Entry entry = (Map.Entry) entryIt.next();
+                addAll((String) entry.getKey(), (ArrayList) entry.getValue());
+            }
+            _pendingJoins.clear();
+            _pendingJoinCount = 0;
+        }
+    }
+    
+    // Returns the Graph for a channel, creating it if it doesn't already
+    // exist.
+    Graph getOrCreateGraph(String channel) {
+        // Pending joins may be added from another thread, so Graphs are
+        // only created by one thread at a time.
+        synchronized (_graphLock) {
+            String key = channel.toLowerCase();
+            Graph graph = (Graph) _graphs.get(key);
+            if (graph == null) {
+                // Graphs kept in a MappedGraphStore are loaded from it, rather
+                // than from restore points and the journal.
+                boolean offHeap = Boolean.valueOf(config.getChannelString(channel, "OffHeapStore", String.valueOf(config.offHeapStore))).booleanValue();
+                if (config.createRestorePoints && !offHeap) {
+                    graph = readGraph(key, key.substring(1));
+                }
+                if (graph == null) {
+                    graph = new Graph(channel, config);
+                }
+                if (offHeap) {
+                    try {
+                        graph.openStore();
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not open the store for " + channel + ": " + e);
+                    }
+                }
+                if (config.createRestorePoints && config.createJournal && !offHeap) {
+                    try {
+                        graph.openJournal();
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not open the journal for " + channel + ": " + e);
+                    }
+                }
+                // Views are restored from their own restore points, so they are
+                // only attached once the journal has been replayed.
+                addViews(graph, channel);
+                if (config.historyInterval > 0) {
+                    graph.openHistory();
+                }
+                if (config.exportInterval > 0) {
+                    graph.openExports();
+                }
+                if (_network != null) {
+                    graph.addGraphListener(_network);
+                }
+                _nickIndex.add(graph);
+                synchronized (_graphs) {
+                    _graphs.put(key, graph);
+                }
+            }
+            return graph;
+        }
+    }
+
+    // Create the Graph of the whole network, which is named like a channel
+    // and is restored, stored and exported in the same way.
+    private void createNetwork(String label) {
+        String key = label.toLowerCase();
+        boolean offHeap = Boolean.valueOf(config.getChannelString(label, "OffHeapStore", String.valueOf(config.offHeapStore))).booleanValue();
+        Graph graph = null;
+        if (config.createRestorePoints && !offHeap) {
+            graph = readGraph(key, key.substring(1));
+        }
         if (graph == null) {
+            graph = new Graph(label, config);
+        }
+        if (offHeap) {
+            try {
+                graph.openStore();
+            }
+            catch (IOException e) {
+                System.out.println("Could not open the store for " + label + ": " + e);
+            }
+        }
+        if (config.historyInterval > 0) {
+            graph.openHistory();
+        }
+        if (config.exportInterval > 0) {
+            graph.openExports();
+        }
+        _network = new NetworkAggregate(graph);
+    }
+    
+    // Returns the Graph of the whole network, or null if there isn't one.
+    public Graph getNetworkGraph() {
+        return _network == null ? null : _network.getGraph();
+    }
+    
+    // The nicks with the highest PageRank, with their share of the
+    // PageRank and their weighted degree.
+    private String describeLeaders(Graph graph, int k) {
+        StringBuffer leaders = new StringBuffer();
+        synchronized (graph) {
+            Centrality centrality = graph.getCentrality();
+            Node[] top = centrality.getTop(k, Centrality.PAGERANK);
+            for (int i = 0; i < top.length; i++) {
+                String nick = top[i].toString();
+                if (i > 0) {
+                    leaders.append(", ");
+                }
+                leaders.append(nick).append(" (");
+                leaders.append(Math.round(centrality.getRank(nick) * 1000) / 10.0).append("%, degree ");
+                leaders.append(Math.round(centrality.getDegree(nick) * 10) / 10.0).append(')');
+            }
+        }
+        return leaders.length() == 0 ? "nobody yet" : leaders.toString();
+    }
+    
+    // Add the decay views configured for a channel. Each view is a separate
+    // Graph that is kept up to date by the channel's Graph.
+    private void addViews(Graph graph, String channel) {
+        String key = channel.toLowerCase();
+        LinkedHashMap views = ViewMirror.parse(config.getChannelString(channel, "DecayViews", config.decayViews));
+        Iterator viewIt = views.entrySet().iterator();
+        while (viewIt.hasNext()) {
+            Map.Entry entry = (Map.Entry) viewIt.next();
+            String name = (String) entry.getKey();
+            Graph view = null;
             if (config.createRestorePoints) {
-                graph = readGraph(key);
+                view = readGraph(key, key.substring(1) + "-" + name);
             }
-            if (graph == null) {
-                graph = new Graph(channel, config);
+            if (view == null) {
+                view = new Graph(channel, config);
+            }
+            view.setView(name, ((Double) entry.getValue()).doubleValue());
+            if (config.exportInterval > 0) {
+                view.openExports();
             }
-            _graphs.put(key, graph);
+            graph.addView(view);
         }
-        
-        // Add the Node to the Graph.
-        graph.addNode(node);
     }
 
     private void changeNick(String oldNick, String newNick) {
-        // Effect the nick change by calling the mergeNode method on all Graphs.
-        Iterator graphIt = _graphs.values().iterator();
-        while (graphIt.hasNext()) {
-            Graph graph = (Graph) graphIt.next();
-            Node oldNode = new Node(oldNick);
-            Node newNode = new Node(newNick);
-            graph.mergeNode(oldNode, newNode);
+        // Effect the nick change by calling the mergeNode method on all
+        // Graphs that contain the old nick.
+        Graph[] graphs = _nickIndex.getGraphs(oldNick);
+        if (graphs.length == 0) {
+            return;
+        }
+        Node oldNode = new Node(oldNick);
+        Node newNode = new Node(newNick);
+        for (int i = 0; i < graphs.length; i++) {
+            graphs[i].mergeNode(oldNode, newNode);
         }
     }
     
-    // Read a serialized graph from disk.
-    private Graph readGraph(String channel) {
+    // Read a saved graph from disk. The stem is the start of the file names,
+    // which is the channel name for the channel itself.
+    private Graph readGraph(String channel, String stem) {
         Graph g = null;
-        // Try and see if the graph can be restored from file.
+        String strippedChannel = channel.toLowerCase().substring(1);
+        File dir = new File(config.outputDirectory, strippedChannel);
+        
+        // Try the binary snapshots first, starting with the latest.
+        File latest = new File(dir, stem + "-restore.bin");
+        for (int i = 0; i < Math.max(1, config.restorePointGenerations); i++) {
+            File snapshot = RestorePointWriter.getGeneration(latest, i);
+            if (snapshot.exists()) {
+                try {
+                    return GraphSnapshot.read(snapshot, config);
+                }
+                catch (Exception e) {
+                    System.out.println("Could not read " + snapshot + ": " + e);
+                }
+            }
+        }
+        
+        // Otherwise fall back to an old serialized graph. Only its data is
+        // kept, as it was saved with an old Configuration. This will be
+        // saved as a snapshot when the next restore point is written.
+        File file = new File(dir, stem + "-restore.dat");
+        if (!file.exists()) {
+            return null;
+        }
         try {
-            String strippedChannel = channel.toLowerCase().substring(1);
-            
-            File dir = new File(config.outputDirectory, strippedChannel);
-            File file = new File(dir, strippedChannel + "-restore.dat");
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-            String version = (String) ois.readObject();
-            if (version.equals(SocialNetworkBot.VERSION)) {
-                // Only read the object if the file is for the correct version.
-                g = (Graph) ois.readObject();
+            try {
+                String version = (String) ois.readObject();
+                if (version.equals(SocialNetworkBot.VERSION)) {
+                    // Only read the object if the file is for the correct version.
+                    g = GraphSnapshot.copy((Graph) ois.readObject(), config);
+                    System.out.println("Migrated " + file + " to the new restore point format");
+                }
+                else {
+                    System.out.println("Ignoring " + file + " from " + version);
+                }
+            }
+            finally {
+                ois.close();
             }
-            ois.close();
         }
         catch (Exception e) {
-            // Do nothing?
+            System.out.println("Could not read " + file + ": " + e);
         }
         return g;
     }
     
+    // Close the output files of all Graphs. This only has any effect the
+    // first time it is called.
+    public void closeGraphs() {
+        synchronized (_graphs) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+        }
+        flushJoins();
+        Iterator graphIt = new ArrayList(_graphs.values()).iterator();
+        while (graphIt.hasNext()) {
+            Graph graph = (Graph) graphIt.next();
+            graph.close();
+        }
+        if (_network != null) {
+            _network.flush();
+            _network.getGraph().close();
+        }
+    }
+    
+    // One shutdown hook closes the Graphs of every bot in this JVM that
+    // has not already been closed.
+    private static synchronized void addToShutdownHook(SocialNetworkBot bot) {
+        if (_bots == null) {
+            _bots = new WeakHashMap();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    Object[] bots;
+                    synchronized (SocialNetworkBot.class) {
+                        bots = _bots.keySet().toArray();
+                    }
+                    for (int i = 0; i < bots.length; i++) {
+                        ((SocialNetworkBot) bots[i]).closeGraphs();
+                    }
+                }
+            });
+        }
+        _bots.put(bot, null);
+    }
+    
     public Configuration getConfig() {
         return config;
     }
     
+    // Returns the Graph for a channel, or the Graph of the whole network
+    // if the channel has its name.
     public Graph getGraph(String channel) {
         channel = channel.toLowerCase();
+        Graph network = getNetworkGraph();
+        if (network != null && network.getLabel().equalsIgnoreCase(channel)) {
+            return network;
+        }
         return (Graph) _graphs.get(channel);
     }
     
+    // Returns every channel's Graph, followed by their views. This may be
+    // called from other threads.
+    public Graph[] getGraphs() {
+        ArrayList graphs = new ArrayList();
+        synchronized (_graphs) {
+            graphs.addAll(_graphs.values());
+        }
+        int channels = graphs.size();
+        for (int i = 0; i < channels; i++) {
+            graphs.addAll(((Graph) graphs.get(i)).getViews());
+        }
+        if (_network != null) {
+            graphs.add(_network.getGraph());
+        }
+        return (Graph[]) graphs.toArray(new Graph[graphs.size()]);
+    }
+    
     public static void main(String[] args) throws Exception {
         
         Properties p = new Properties();
@@ -283,8 +681,29 @@ public class SocialNetworkBot extends PircBot {
             configFile = args[0];
         }
         p.load(new FileInputStream(configFile));
-        Configuration config = new Configuration(p);
         
+        // Several servers can be listed in Servers, each with its own
+        // section of settings. Their frames are all drawn in one RenderPool.
+        StringTokenizer tokenizer = new StringTokenizer(p.getProperty("Servers", ""), ", ");
+        if (!tokenizer.hasMoreTokens()) {
+            start(new Configuration(p));
+            return;
+        }
+        while (tokenizer.hasMoreTokens()) {
+            String name = tokenizer.nextToken();
+            try {
+                Configuration config = new Configuration(Configuration.getSection(p, name));
+                config.outputDirectory.mkdirs();
+                start(config);
+            }
+            catch (Exception e) {
+                System.out.println("Could not start " + name + ": " + e);
+            }
+        }
+    }
+    
+    // Create a bot, connect it to its server and join its channels.
+    public static SocialNetworkBot start(Configuration config) throws Exception {
         SocialNetworkBot bot = new SocialNetworkBot(config);
         bot.setVerbose(config.verbose);
         bot.setName(config.nick);
@@ -298,20 +717,42 @@ public class SocialNetworkBot extends PircBot {
             // Stick with the platform default.
         }
         
+        if (config.httpPort > 0) {
+            new WebServer(bot, config.httpPort).start();
+        }
+        
         bot.connect(config.server, config.port, config.serverPassword);
         Iterator channelIt = config.channelSet.iterator();
         while (channelIt.hasNext()) {
             String channel = (String) channelIt.next();
             bot.joinChannel(channel);
         }
+        return bot;
     }
     
     
+    // WeakHashMap of every SocialNetworkBot to be closed on exit.
+    private static WeakHashMap _bots = null;
+    
     // HashMap of String -> Graph objects.
     private HashMap _graphs = new HashMap();
+    private boolean _closed = false;
+    
+    // Which Graphs each nick is in.
+    private NickIndex _nickIndex = new NickIndex();
+    
+    // Merges every channel into one Graph, if NetworkGraph is set.
+    private NetworkAggregate _network = null;
 
     // Used to remember which channels we should be in
     private HashSet _channelSet = new HashSet();
+    
+    // HashMap of channel -> ArrayList of nicks that have joined it.
+    private HashMap _pendingJoins = new HashMap();
+    private int _pendingJoinCount = 0;
+    
+    // Held while looking up or creating a Graph.
+    private Object _graphLock = new Object();
 
     private Configuration config;
     
@@ -0,0 +1,175 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Writes the current layout of a Graph as an SVG document. This produces
+ * the same diagram as Graph.drawImage, but the output is streamed straight
+ * to a Writer, so there is no need to rasterise or encode an image.
+ * <p>
+ * Graph.calcBounds must have been called before the diagram is written.
+ */
+public class SvgRenderer {
+
+    public SvgRenderer(Graph graph, Configuration config) {
+        _graph = graph;
+        this.config = config;
+    }
+
+    public void write(Writer out, int width, int height, int borderSize, int nodeRadius, double edgeThreshold, boolean showEdges) throws IOException {
+        int outputWidth = width;
+        int outputHeight = height;
+        width = width - borderSize * 3;  // note the 3 (gives more border on right side)
+        height = height - borderSize * 2;
+
+        Bounds bounds = _graph.getBounds();
+        double minX = bounds.minX;
+        double maxX = bounds.maxX;
+        double minY = bounds.minY;
+        double maxY = bounds.maxY;
+        double maxWeight = bounds.maxWeight;
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + outputWidth + "\" height=\"" + outputHeight + "\" font-family=\"SansSerif\">\n");
+        out.write("<rect x=\"0.5\" y=\"0.5\" width=\"" + (outputWidth - 1) + "\" height=\"" + (outputHeight - 1) + "\" fill=\"" + toHex(config.backgroundColor) + "\" stroke=\"" + toHex(config.borderColor) + "\"/>\n");
+
+        writeText(out, _graph.getDisplayLabel(), borderSize + 20, 80, 64, true, config.channelColor);
+        writeText(out, "A Social Network Diagram for an IRC Channel", borderSize, borderSize - nodeRadius - 15, 18, true, config.titleColor);
+        int bottom = height + borderSize * 2 - 5;
+        writeText(out, _graph.getDisplayCaption(), borderSize, bottom - 50, 18, true, config.titleColor);
+        writeText(out, "Generated by " + config.nick + " on " + config.server + " using " + SocialNetworkBot.VERSION, borderSize, bottom - 30, 12, false, config.titleColor);
+        writeText(out, "Blue edge thickness and shortness represents strength of relationship", borderSize, bottom - 15, 12, false, config.titleColor);
+        writeText(out, "http://www.jibble.org/piespy/ - This frame was drawn at " + new Date(), borderSize, bottom, 12, false, config.titleColor);
+
+        // For large graphs, only draw what can actually be seen.
+        Collection edges = _graph.getEdges();
+        Collection nodes = _graph.getVisibleNodes();
+        HashSet labelled = null;
+        if (config.levelOfDetail) {
+            LevelOfDetail lod = new LevelOfDetail(_graph, bounds, width, height, borderSize, config.edgeBudget, edgeThreshold);
+            edges = Arrays.asList(lod.getEdges());
+            nodes = Arrays.asList(lod.getNodes());
+            labelled = lod.getLabelledNodes(getLabelMetrics(), nodeRadius, config.labelBudget);
+        }
+
+        // Draw all edges...
+        if (showEdges) {
+            out.write("<g stroke=\"" + toHex(config.edgeColor) + "\" stroke-linecap=\"square\">\n");
+            Iterator edgeIt = edges.iterator();
+            while (edgeIt.hasNext()) {
+                Edge edge = (Edge) edgeIt.next();
+                double weight = edge.getWeight();
+                if (weight < edgeThreshold) {
+                    continue;
+                }
+                Node nodeA = edge.getSource();
+                Node nodeB = edge.getTarget();
+                int x1 = (int) (width * (nodeA.getX() - minX) / (maxX - minX)) + borderSize;
+                int y1 = (int) (height * (nodeA.getY() - minY) / (maxY - minY)) + borderSize;
+                int x2 = (int) (width * (nodeB.getX() - minX) / (maxX - minX)) + borderSize;
+                int y2 = (int) (height * (nodeB.getY() - minY) / (maxY - minY)) + borderSize;
+                double stroke = (Math.log(weight + 1) * 0.5) + 1;
+                double opacity = (102 + (int) (153 * weight / maxWeight)) / 255.0;
+                out.write("<line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2 + "\" stroke-width=\"" + format(stroke) + "\" stroke-opacity=\"" + format(opacity) + "\"/>\n");
+            }
+            out.write("</g>\n");
+        }
+
+        // Draw all nodes...
+        out.write("<g fill=\"" + toHex(config.nodeColor) + "\" stroke=\"" + toHex(config.edgeColor) + "\" stroke-width=\"2\">\n");
+        Iterator nodeIt = nodes.iterator();
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            int x1 = (int) (width * (node.getX() - minX) / (maxX - minX)) + borderSize;
+            int y1 = (int) (height * (node.getY() - minY) / (maxY - minY)) + borderSize;
+            Color color = _graph.getNodeColor(node);
+            String fill = color.equals(config.nodeColor) ? "" : " fill=\"" + toHex(color) + "\"";
+            out.write("<circle cx=\"" + x1 + "\" cy=\"" + y1 + "\" r=\"" + nodeRadius + "\"" + fill + "/>\n");
+        }
+        out.write("</g>\n");
+
+        // Labels go on top of all nodes.
+        out.write("<g fill=\"" + toHex(config.labelColor) + "\" font-size=\"10\">\n");
+        nodeIt = nodes.iterator();
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            if (labelled != null && !labelled.contains(node)) {
+                continue;
+            }
+            int x1 = (int) (width * (node.getX() - minX) / (maxX - minX)) + borderSize;
+            int y1 = (int) (height * (node.getY() - minY) / (maxY - minY)) + borderSize;
+            out.write("<text x=\"" + (x1 + nodeRadius) + "\" y=\"" + (y1 - nodeRadius) + "\">" + escape(node.toString()) + "</text>\n");
+        }
+        out.write("</g>\n");
+
+        out.write("</svg>\n");
+    }
+
+    // Label sizes are estimated from the font that drawImage uses.
+    private static FontMetrics getLabelMetrics() {
+        Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        FontMetrics metrics = g.getFontMetrics(new Font("SansSerif", Font.PLAIN, 10));
+        g.dispose();
+        return metrics;
+    }
+
+    private static void writeText(Writer out, String text, int x, int y, int size, boolean bold, Color color) throws IOException {
+        out.write("<text x=\"" + x + "\" y=\"" + y + "\" font-size=\"" + size + "\"" + (bold ? " font-weight=\"bold\"" : "") + " fill=\"" + toHex(color) + "\">" + escape(text) + "</text>\n");
+    }
+
+    private static String toHex(Color color) {
+        String hex = Integer.toHexString(color.getRGB() & 0xffffff);
+        while (hex.length() < 6) {
+            hex = "0" + hex;
+        }
+        return "#" + hex;
+    }
+
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    // Nicks may contain characters that are special in XML.
+    static String escape(String text) {
+        StringBuffer buffer = new StringBuffer(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': buffer.append("&lt;"); break;
+                case '>': buffer.append("&gt;"); break;
+                case '&': buffer.append("&amp;"); break;
+                case '"': buffer.append("&quot;"); break;
+                default:
+                    if (c < 0x20 && c != '\t') {
+                        // Control characters are not allowed in XML 1.0.
+                        break;
+                    }
+                    buffer.append(c);
+            }
+        }
+        return buffer.toString();
+    }
+
+    private Graph _graph;
+    private Configuration config;
+
+}
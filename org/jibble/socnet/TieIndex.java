@@ -0,0 +1,172 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * Keeps the Edges of a Graph in order of weight, both for the whole Graph
+ * and for each nick, so that the strongest Edge, or the nicks that someone
+ * talks to most, can be found without going over every Edge.
+ * <p>
+ * Temporal decay takes the same amount off every Edge, which does not
+ * change their order. Each Edge is therefore kept in order of its weight
+ * plus all of the decay so far, which only changes when the Edge does.
+ */
+public class TieIndex extends GraphAdapter {
+
+    public TieIndex(Graph graph) {
+        Iterator edgeIt = graph.getEdges().iterator();
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            edgeAdded(graph, edge, edge.getWeight());
+        }
+    }
+
+    // Returns the weight of the strongest Edge, or 0 if there are none.
+    public synchronized double getMaxWeight() {
+        if (_all.isEmpty()) {
+            return 0;
+        }
+        return ((Tie) _all.first()).key - _decayed;
+    }
+
+    // Returns up to k of the strongest Edges in the Graph, strongest first.
+    public synchronized Edge[] getStrongest(int k) {
+        return first(_all, k);
+    }
+
+    // Returns up to k of the strongest Edges of a nick, strongest first.
+    public synchronized Edge[] getStrongest(String nick, int k) {
+        TreeSet ties = (TreeSet) _byNick.get(nick.toLowerCase());
+        if (ties == null) {
+            return new Edge[0];
+        }
+        return first(ties, k);
+    }
+
+    private Edge[] first(TreeSet ties, int k) {
+        Edge[] edges = new Edge[Math.min(k, ties.size())];
+        Iterator tieIt = ties.iterator();
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = ((Tie) tieIt.next()).edge;
+        }
+        return edges;
+    }
+
+    public synchronized void nodeRenamed(Graph graph, Node node, String oldNick) {
+        // Any Node that already had the new nick has lost its Edges, so
+        // its set is empty.
+        TreeSet ties = (TreeSet) _byNick.remove(oldNick.toLowerCase());
+        if (ties != null) {
+            _byNick.put(node.getLowerCaseNick(), ties);
+        }
+    }
+
+    public synchronized void edgeAdded(Graph graph, Edge edge, double increment) {
+        Tie tie = (Tie) _ties.get(edge);
+        if (tie == null) {
+            tie = new Tie(edge, ++_sequence);
+            tie.key = edge.getWeight() + _decayed;
+            _ties.put(edge, tie);
+        }
+        else {
+            remove(tie);
+            tie.key += increment;
+        }
+        _all.add(tie);
+        getTies(edge.getSource()).add(tie);
+        getTies(edge.getTarget()).add(tie);
+    }
+
+    public synchronized void edgeRemoved(Graph graph, Edge edge) {
+        Tie tie = (Tie) _ties.remove(edge);
+        if (tie != null) {
+            remove(tie);
+        }
+    }
+
+    public synchronized void graphDecayed(Graph graph, double amount) {
+        _decayed += amount;
+    }
+
+    private void remove(Tie tie) {
+        _all.remove(tie);
+        removeTie(tie.edge.getSource(), tie);
+        removeTie(tie.edge.getTarget(), tie);
+    }
+
+    private void removeTie(Node node, Tie tie) {
+        TreeSet ties = (TreeSet) _byNick.get(node.getLowerCaseNick());
+        if (ties != null) {
+            ties.remove(tie);
+            if (ties.isEmpty()) {
+                _byNick.remove(node.getLowerCaseNick());
+            }
+        }
+    }
+
+    private TreeSet getTies(Node node) {
+        TreeSet ties = (TreeSet) _byNick.get(node.getLowerCaseNick());
+        if (ties == null) {
+            ties = new TreeSet(TIE_ORDER);
+            _byNick.put(node.getLowerCaseNick(), ties);
+        }
+        return ties;
+    }
+
+    private static class Tie {
+
+        public Tie(Edge edge, long sequence) {
+            this.edge = edge;
+            this.sequence = sequence;
+        }
+
+        public Edge edge;
+        public long sequence;
+
+        // The weight of the Edge plus all of the decay so far.
+        public double key;
+
+    }
+
+    // Strongest first. Equal weights are kept apart by when the Edge was
+    // first seen.
+    private static final Comparator TIE_ORDER = new Comparator() {
+        public int compare(Object a, Object b) {
+            Tie ta = (Tie) a;
+            Tie tb = (Tie) b;
+            if (ta.key != tb.key) {
+                return ta.key > tb.key ? -1 : 1;
+            }
+            return ta.sequence < tb.sequence ? -1 : (ta.sequence > tb.sequence ? 1 : 0);
+        }
+    };
+
+    // IdentityHashMap of Edge -> Tie. Edges change their hash codes when
+    // a nick is renamed, but remain the same objects.
+    private IdentityHashMap _ties = new IdentityHashMap();
+
+    private TreeSet _all = new TreeSet(TIE_ORDER);
+
+    // HashMap of lower case nick -> TreeSet of that nick's Ties.
+    private HashMap _byNick = new HashMap();
+
+    private double _decayed = 0;
+    private long _sequence = 0;
+
+}
@@ -0,0 +1,101 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.util.*;
+
+/**
+ * A ViewMirror copies the changes made to a channel's Graph into another
+ * Graph that decays at a different rate. This allows a channel to be drawn
+ * over several time scales at once, such as the last hour and the long
+ * term, while the InferenceHeuristics only see each message once.
+ * <p>
+ * Temporal decay is not copied, as each view applies its own decay after
+ * each frame.
+ */
+public class ViewMirror extends GraphAdapter {
+
+    public ViewMirror(Graph view) {
+        _view = view;
+    }
+
+    public Graph getView() {
+        return _view;
+    }
+
+    public void nodeAdded(Graph graph, Node node) {
+        _view.addNode(new Node(node.toString()));
+    }
+
+    public void nodeRemoved(Graph graph, Node node) {
+        _view.removeNode(new Node(node.toString()));
+    }
+
+    public void nodeRenamed(Graph graph, Node node, String oldNick) {
+        // The view draws its next frame when the channel does.
+        _view.mergeNode(new Node(oldNick), new Node(node.toString()), false);
+    }
+
+    public void edgeAdded(Graph graph, Edge edge, double increment) {
+        Node source = new Node(edge.getSource().toString());
+        Node target = new Node(edge.getTarget().toString());
+        // The view may have evicted Nodes that are still in the channel.
+        if (!_view.contains(source)) {
+            _view.addNode(source);
+        }
+        if (!_view.contains(target)) {
+            _view.addNode(target);
+        }
+        // Making room for one Node may have evicted the other.
+        if (_view.contains(source) && _view.contains(target)) {
+            _view.increaseEdge(source, target, increment);
+        }
+    }
+
+    public void frameCompleted(Graph graph) {
+        _view.makeNextImage();
+    }
+
+    // Parse a comma separated list of name:decayAmount pairs. Badly formed
+    // entries are reported and skipped.
+    public static LinkedHashMap parse(String value) {
+        LinkedHashMap views = new LinkedHashMap();
+        StringTokenizer tokenizer = new StringTokenizer(value, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            if (token.length() == 0) {
+                continue;
+            }
+            try {
+                int colon = token.indexOf(':');
+                String name = token.substring(0, colon).trim();
+                double amount = Double.parseDouble(token.substring(colon + 1).trim());
+                if (name.length() == 0 || amount < 0) {
+                    throw new IllegalArgumentException();
+                }
+                views.put(name, Double.valueOf(amount));
+            }
+            catch (RuntimeException e) {
+                System.out.println("Ignoring badly formed decay view: " + token);
+            }
+        }
+        return views;
+    }
+
+    private Graph _view;
+
+}
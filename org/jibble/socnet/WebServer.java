@@ -0,0 +1,307 @@
+/*
+Copyright Paul James Mutton, 2001-2004, http://www.jibble.org/
+
+This file is part of PieSpy.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+$Author$
+$Id$
+
+*/
+
+package org.jibble.socnet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import com.sun.net.httpserver.*;
+
+/**
+ * A small web server that serves the latest frame and graph data of each
+ * channel straight from memory.
+ * <pre>
+ *   /                  a JSON list of the channels
+ *   /channel.png       the latest frame
+ *   /channel.json      the nicks and edges of the graph
+ *   /channel.events    a stream of changes, see DeltaStream
+ * </pre>
+ * Channels are named as they are in file names, without the leading # and
+ * with any view name added, for example /piespy-hour.png. Every response
+ * has an ETag, so clients that poll can be told that nothing has changed
+ * without the data being sent again.
+ */
+public class WebServer implements HttpHandler {
+
+    public WebServer(SocialNetworkBot bot, int port) throws IOException {
+        _bot = bot;
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _server.createContext("/", this);
+        _executor = createExecutor();
+        _server.setExecutor(_executor);
+    }
+
+    public void start() {
+        _server.start();
+        System.out.println("Serving graphs on http://localhost:" + _server.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdown();
+    }
+
+    public HttpServer getServer() {
+        return _server;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                send(exchange, 405, "text/plain", null, "Only GET is supported.\n".getBytes("UTF-8"));
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) {
+                send(exchange, 200, "application/json", null, getIndex().getBytes("UTF-8"));
+                return;
+            }
+            int dot = path.lastIndexOf('.');
+            Graph graph = dot > 1 ? findGraph(path.substring(1, dot)) : null;
+            if (graph == null) {
+                send(exchange, 404, "text/plain", null, "No such channel.\n".getBytes("UTF-8"));
+                return;
+            }
+            String type = path.substring(dot + 1);
+            if (type.equals("png")) {
+                // Check the ETag first, so nothing is drawn for a client
+                // that already has the latest frame.
+                String etag = "\"" + graph.getStem() + "-" + graph.getFrameCount() + "\"";
+                if (matches(exchange, etag)) {
+                    send(exchange, 200, "image/png", etag, null);
+                }
+                else {
+                    Graph.EncodedFrame frame = graph.getLatestFrame();
+                    send(exchange, 200, "image/png", "\"" + graph.getStem() + "-" + frame.number + "\"", frame.data);
+                }
+            }
+            else if (type.equals("json")) {
+                String etag;
+                String json;
+                synchronized (graph) {
+                    etag = "\"" + graph.getStem() + "-" + graph.getFrameCount() + "-" + graph.getNodes().size() + "\"";
+                    json = matches(exchange, etag) ? null : getGraphData(graph);
+                }
+                send(exchange, 200, "application/json", etag, json == null ? null : json.getBytes("UTF-8"));
+            }
+            else if (type.equals("events")) {
+                sendEvents(exchange, graph);
+            }
+            else {
+                send(exchange, 404, "text/plain", null, "Only .png, .json and .events are available.\n".getBytes("UTF-8"));
+            }
+        }
+        catch (IOException e) {
+            // The client has probably gone away.
+        }
+        catch (RuntimeException e) {
+            System.out.println("Could not serve " + exchange.getRequestURI() + ": " + e);
+            send(exchange, 500, "text/plain", null, "Internal error.\n".getBytes("UTF-8"));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // Send a response. If the client already has the version with this
+    // ETag, only a 304 is sent. The data may be null in that case.
+    private void send(HttpExchange exchange, int status, String contentType, String etag, byte[] data) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if (etag != null) {
+            headers.set("ETag", etag);
+            headers.set("Cache-Control", "no-cache");
+            if (matches(exchange, etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+        headers.set("Content-Type", contentType);
+        headers.set("Access-Control-Allow-Origin", "*");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, data.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+
+    // Send Server-Sent Events until the client goes away. The request's
+    // thread waits for each frame.
+    private void sendEvents(HttpExchange exchange, Graph graph) throws IOException {
+        DeltaStream stream = graph.getDeltaStream();
+        BlockingQueue queue = stream.subscribe(graph);
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "text/event-stream; charset=UTF-8");
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            while (true) {
+                String event = (String) queue.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                if (event == DeltaStream.CLOSED) {
+                    break;
+                }
+                if (event == null) {
+                    // Stop proxies from closing a quiet connection.
+                    event = ": keep-alive\n\n";
+                }
+                out.write(event.getBytes("UTF-8"));
+                out.flush();
+            }
+            out.close();
+        }
+        catch (InterruptedException e) {
+            // The server is stopping.
+        }
+        finally {
+            stream.unsubscribe(queue);
+        }
+    }
+
+    private static boolean matches(HttpExchange exchange, String etag) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        return ifNoneMatch != null && (ifNoneMatch.equals(etag) || ifNoneMatch.equals("*"));
+    }
+
+    // Find a channel or view by the name used in its file names.
+    private Graph findGraph(String stem) {
+        Graph[] graphs = _bot.getGraphs();
+        for (int i = 0; i < graphs.length; i++) {
+            if (graphs[i].getStem().equals(stem)) {
+                return graphs[i];
+            }
+        }
+        return null;
+    }
+
+    private String getIndex() {
+        Graph[] graphs = _bot.getGraphs();
+        StringBuffer json = new StringBuffer("[");
+        for (int i = 0; i < graphs.length; i++) {
+            Graph graph = graphs[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\n{\"channel\":");
+            appendString(json, graph.getLabel());
+            json.append(",\"name\":");
+            appendString(json, graph.getStem());
+            if (graph.getViewName() != null) {
+                json.append(",\"view\":");
+                appendString(json, graph.getViewName());
+            }
+            synchronized (graph) {
+                json.append(",\"nodes\":").append(graph.getNodes().size());
+                json.append(",\"edges\":").append(graph.getEdges().size());
+                json.append(",\"frames\":").append(graph.getFrameCount());
+            }
+            json.append('}');
+        }
+        json.append("\n]\n");
+        return json.toString();
+    }
+
+    // The nicks and edges of a Graph. The Graph must be locked.
+    static String getGraphData(Graph graph) {
+        StringBuffer json = new StringBuffer(64 + graph.getNodes().size() * 48 + graph.getEdges().size() * 40);
+        json.append("{\"channel\":");
+        appendString(json, graph.getLabel());
+        json.append(",\"frame\":").append(graph.getFrameCount());
+        json.append(",\"nodes\":[");
+        Iterator nodeIt = graph.getNodes().iterator();
+        boolean first = true;
+        while (nodeIt.hasNext()) {
+            Node node = (Node) nodeIt.next();
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("{\"nick\":");
+            appendString(json, node.toString());
+            json.append(",\"weight\":").append((float) node.getWeight());
+            json.append(",\"x\":").append((float) node.getX());
+            json.append(",\"y\":").append((float) node.getY());
+            json.append('}');
+        }
+        json.append("],\"edges\":[");
+        Iterator edgeIt = graph.getEdges().iterator();
+        first = true;
+        while (edgeIt.hasNext()) {
+            Edge edge = (Edge) edgeIt.next();
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("{\"source\":");
+            appendString(json, edge.getSource().toString());
+            json.append(",\"target\":");
+            appendString(json, edge.getTarget().toString());
+            json.append(",\"weight\":").append((float) edge.getWeight());
+            json.append('}');
+        }
+        json.append("]}\n");
+        return json.toString();
+    }
+
+    static void appendString(StringBuffer json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                String hex = Integer.toHexString(c);
+                json.append("\\u");
+                for (int j = hex.length(); j < 4; j++) {
+                    json.append('0');
+                }
+                json.append(hex);
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    // Each request gets its own virtual thread where the JVM supports
+    // them, otherwise a thread from a cached pool.
+    static ExecutorService createExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return (ExecutorService) method.invoke(null, new Object[0]);
+        }
+        catch (Exception e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PieSpy web");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private static final int KEEP_ALIVE_SECONDS = 15;
+
+    private SocialNetworkBot _bot;
+    private HttpServer _server;
+    private ExecutorService _executor;
+
+}